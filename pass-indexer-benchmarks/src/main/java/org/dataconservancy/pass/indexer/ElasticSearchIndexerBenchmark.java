@@ -0,0 +1,133 @@
+/*
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.indexer;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+/**
+ * Per message cost of the indexer. Normalization and document id generation are measured alone.
+ * Handling a whole message is measured against a local MockWebServer standing in for both Fedora
+ * and Elasticsearch, so it includes HTTP overhead on the loopback interface but no real latency.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ElasticSearchIndexerBenchmark {
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    @Param({ "grant", "publication", "submission" })
+    public String fixture;
+
+    private MockWebServer server;
+    private ElasticSearchIndexer indexer;
+    private String resource;
+    private String resource_uri;
+    private FedoraMessage message;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        resource = Fixtures.load(fixture);
+        server = new MockWebServer();
+
+        // Index is created with the provided configuration. Fedora returns the fixture and
+        // Elasticsearch accepts every write.
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if (request.getPath().startsWith("/fcrepo/")) {
+                    return new MockResponse().setBody(resource);
+                }
+
+                if (request.getMethod().equals("GET")) {
+                    return new MockResponse().setResponseCode(404);
+                }
+
+                return new MockResponse().setBody("{\"result\": \"created\"}");
+            }
+        });
+
+        server.start();
+
+        indexer = new ElasticSearchIndexer(server.url("/es/pass/").toString(), null, "admin", "admin");
+
+        resource_uri = server.url("/fcrepo/rest/" + fixture + "s/30/46/79/7e/3046797e-227c-4da0-ae95-e1828561ca5f")
+                .toString();
+
+        message = new FedoraMessage();
+        message.setAction(FedoraAction.MODIFIED);
+        message.setResourceURI(resource_uri);
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() throws IOException {
+        indexer.close();
+        server.shutdown();
+    }
+
+    @Benchmark
+    public Buffer normalizeDocument() throws IOException {
+        Buffer doc = new Buffer();
+
+        indexer.normalize_document(ResponseBody.create(JSON, resource),
+                new OutputStreamWriter(doc.outputStream(), StandardCharsets.UTF_8));
+
+        return doc;
+    }
+
+    @Benchmark
+    public String documentId() throws IOException {
+        return indexer.get_document_id(resource_uri);
+    }
+
+    @Benchmark
+    public String base64Encode() {
+        return indexer.base64_encode(resource_uri);
+    }
+
+    @Benchmark
+    public void handle() throws IOException {
+        indexer.handle(message);
+    }
+}
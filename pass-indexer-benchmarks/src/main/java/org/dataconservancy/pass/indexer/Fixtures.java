@@ -0,0 +1,59 @@
+/*
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.indexer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Realistic PASS representations used by the benchmarks. The resources are compact JSON-LD as
+ * Fedora returns them: a small grant, a publication with a long abstract, and a submission with
+ * a large metadata blob and many grants.
+ */
+final class Fixtures {
+    static final String MESSAGE = "message";
+    static final String PASS_TYPE_PREFIX = "http://oapass.org/ns/pass#";
+
+    private Fixtures() {
+    }
+
+    /**
+     * @param name - Name of fixture without extension.
+     * @return Content of the fixture.
+     */
+    static String load(String name) {
+        try (InputStream is = Fixtures.class.getResourceAsStream("/fixtures/" + name + ".json")) {
+            if (is == null) {
+                throw new IllegalArgumentException("No such fixture: " + name);
+            }
+
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+
+            while ((n = is.read(buf)) != -1) {
+                result.write(buf, 0, n);
+            }
+
+            return new String(result.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to load fixture: " + name, e);
+        }
+    }
+}
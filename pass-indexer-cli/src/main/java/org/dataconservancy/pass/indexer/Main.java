@@ -1,13 +1,38 @@
 package org.dataconservancy.pass.indexer;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 import org.apache.activemq.ActiveMQConnectionFactory;
 
 // Load configuration from system properties or environment variables.
 // Then start the Fedora indexer service.
+// With the arguments reindex ROOT_URI, instead rebuild the index from the Fedora resources under ROOT_URI.
 
 public class Main {
+    // Add indexes from a comma separated list of TYPE=INDEX_URL or TYPE=INDEX_URL|CONFIG.
+    private static void add_type_indexes(FedoraIndexerService serv, String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return;
+        }
+
+        for (String entry : value.split(",")) {
+            int eq = entry.indexOf('=');
+
+            if (eq <= 0) {
+                System.err.println("Invalid entry in PI_ES_TYPE_INDEXES, expected TYPE=INDEX_URL: " + entry);
+                System.exit(1);
+            }
+
+            String type = entry.substring(0, eq).trim();
+            String[] index = entry.substring(eq + 1).trim().split("\\|", 2);
+
+            serv.addTypeIndex(type, index[0], index.length > 1 ? index[1] : null);
+        }
+    }
+
     // Check environment variable and then property. 
     // Key must exist.
     private static String get_config(final String key) {
@@ -36,21 +61,184 @@ public class Main {
         return value;
     }
 
+    // Walk the Fedora container tree and index every resource with bulk requests.
+    // Return the number of resources which failed.
+    private static long reindex(String root_uri, String es_index_url, Path checkpoint) throws IOException {
+        try (ElasticSearchIndexer es = new ElasticSearchIndexer(es_index_url, get_config("PI_ES_CONFIG", null),
+                get_config("PI_FEDORA_USER"), get_config("PI_FEDORA_PASS"))) {
+            int bulk_size = Integer.parseInt(get_config("PI_REINDEX_BULK_SIZE", "500"));
+
+            // A document holds its slot until its bulk request completes, so leave room for one bulk
+            // request to fill while the previous one is sent.
+            es.setMaxInFlight(Math.max(Integer.parseInt(get_config("PI_MAX_IN_FLIGHT", "16")), 2 * bulk_size));
+            es.setRetry(Integer.parseInt(get_config("PI_ES_MAX_RETRIES", "5")),
+                    Long.parseLong(get_config("PI_ES_RETRY_BACKOFF_MS", "100")),
+                    Long.parseLong(get_config("PI_ES_RETRY_MAX_BACKOFF_MS", "10000")));
+            es.enableBulk(bulk_size,
+                    Long.parseLong(get_config("PI_ES_BULK_BYTES", "5242880")),
+                    Long.parseLong(get_config("PI_ES_BULK_LATENCY_MS", "1000")));
+
+            // Versions of the service are respected and gc_deletes is left to it
+            es.setExternalVersioning(Boolean.parseBoolean(get_config("PI_ES_EXTERNAL_VERSIONING", "false")), null);
+
+            FedoraReindexer reindexer = new FedoraReindexer(es, get_config("PI_FEDORA_USER"), get_config("PI_FEDORA_PASS"),
+                    get_config("PI_TYPE_PREFIX"));
+            reindexer.setParallelism(Integer.parseInt(get_config("PI_REINDEX_PARALLELISM", "8")));
+            reindexer.setCheckpoint(checkpoint);
+
+            System.out.println("Reindexing Fedora resources under " + root_uri + " into " + es_index_url);
+
+            reindexer.reindex(root_uri);
+
+            System.out.println("Reindexed " + reindexer.getIndexedCount() + " documents from "
+                    + reindexer.getVisitedCount() + " resources with " + reindexer.getFailedCount() + " failures.");
+
+            return reindexer.getFailedCount();
+        }
+    }
+
+    // Build the next index behind the alias, then swap the alias to it and drop the old index.
+    // An unfinished next index is resumed.
+    private static void reindex_alias(String root_uri, Path checkpoint) throws IOException {
+        String es_index_config = get_config("PI_ES_CONFIG", null);
+        ElasticSearchAliasManager aliases = new ElasticSearchAliasManager(get_config("PI_ES_INDEX"));
+
+        aliases.ensureAlias(es_index_config);
+
+        String index = aliases.getNextIndex();
+
+        if (index == null) {
+            index = aliases.createNextIndex(es_index_config);
+
+            if (checkpoint != null && Files.deleteIfExists(checkpoint)) {
+                System.out.println("Removed checkpoint of previous reindex: " + checkpoint);
+            }
+        } else {
+            System.out.println("Resuming build of index " + index);
+        }
+
+        if (reindex(root_uri, aliases.getIndexUrl(index), checkpoint) > 0) {
+            System.err.println("Alias not swapped to " + index + " because of failures. Run again to retry them.");
+            System.exit(1);
+        }
+
+        aliases.finishBulkLoad(index, es_index_config);
+
+        for (String old : aliases.swap(index)) {
+            aliases.deleteIndex(old);
+        }
+
+        if (checkpoint != null) {
+            Files.deleteIfExists(checkpoint);
+        }
+
+        System.out.println("Alias " + aliases.getAlias() + " now points at " + index);
+    }
+
+    // Rebuild the fingerprint store from the documents in the index.
+    private static void rebuild_fingerprints() throws IOException {
+        try (DocumentFingerprintStore store = new DocumentFingerprintStore(Paths.get(get_config("PI_FINGERPRINT_FILE")),
+                Integer.parseInt(get_config("PI_FINGERPRINT_SLOTS", "4194304")));
+                ElasticSearchIndexer es = new ElasticSearchIndexer(get_config("PI_ES_INDEX"),
+                        get_config("PI_ES_CONFIG", null), get_config("PI_FEDORA_USER"), get_config("PI_FEDORA_PASS"))) {
+            es.setFingerprintStore(store);
+
+            System.out.println("Rebuilt fingerprints of " + es.rebuildFingerprints() + " documents.");
+        }
+    }
+
     public static void main(String[] args) throws IOException {
+        if (args.length == 1 && args[0].equals("fingerprints")) {
+            rebuild_fingerprints();
+            return;
+        }
+
+        if (args.length > 0) {
+            if (args.length != 2 || !args[0].equals("reindex")) {
+                System.err.println("Usage: [reindex ROOT_URI | fingerprints]");
+                System.exit(1);
+            }
+
+            String checkpoint = get_config("PI_REINDEX_CHECKPOINT", "pass-indexer-reindex.log");
+            Path checkpoint_path = checkpoint.isEmpty() ? null : Paths.get(checkpoint);
+
+            if (Boolean.parseBoolean(get_config("PI_ES_ALIAS", "false"))) {
+                reindex_alias(args[1], checkpoint_path);
+            } else {
+                reindex(args[1], get_config("PI_ES_INDEX"), checkpoint_path);
+            }
+
+            return;
+        }
+
+        ActiveMQConnectionFactory jms_con_fact = new ActiveMQConnectionFactory(get_config("PI_FEDORA_JMS_BROKER"));
+        String prefetch = get_config("PI_JMS_PREFETCH", null);
+
+        if (prefetch != null) {
+            jms_con_fact.getPrefetchPolicy().setQueuePrefetch(Integer.parseInt(prefetch));
+        }
+
         try (FedoraIndexerService serv = new FedoraIndexerService()) {
-            serv.setJmsConnectionFactory(new ActiveMQConnectionFactory(get_config("PI_FEDORA_JMS_BROKER")));
+            serv.setJmsConnectionFactory(jms_con_fact);
             serv.setJmsQueue(get_config("PI_FEDORA_JMS_QUEUE"));
             serv.setElasticsearchIndexUrl(get_config("PI_ES_INDEX"));
             serv.setElasticsearchIndexConfig(get_config("PI_ES_CONFIG", null));            
+            serv.setUseAlias(Boolean.parseBoolean(get_config("PI_ES_ALIAS", "false")));
             serv.setFedoraUser(get_config("PI_FEDORA_USER"));
             serv.setFedoraPass(get_config("PI_FEDORA_PASS"));
             serv.setAllowedTypePrefix(get_config("PI_TYPE_PREFIX"));
+            add_type_indexes(serv, get_config("PI_ES_TYPE_INDEXES", null));
+            serv.setJmsSelectorHeader(get_config("PI_JMS_SELECTOR_HEADER", null));
+            serv.setConsumers(Integer.parseInt(get_config("PI_CONSUMERS", "1")));
+            serv.setMaxInFlight(Integer.parseInt(get_config("PI_MAX_IN_FLIGHT", "16")));
+            serv.setRetry(Integer.parseInt(get_config("PI_ES_MAX_RETRIES", "5")),
+                    Long.parseLong(get_config("PI_ES_RETRY_BACKOFF_MS", "100")),
+                    Long.parseLong(get_config("PI_ES_RETRY_MAX_BACKOFF_MS", "10000")));
+            String spool_dir = get_config("PI_SPOOL_DIR", null);
+
+            if (spool_dir != null) {
+                serv.setSpool(Paths.get(spool_dir), Integer.parseInt(get_config("PI_SPOOL_SIZE", "67108864")));
+            }
+
+            String fingerprint_file = get_config("PI_FINGERPRINT_FILE", null);
+
+            if (fingerprint_file != null) {
+                serv.setFingerprintStore(Paths.get(fingerprint_file),
+                        Integer.parseInt(get_config("PI_FINGERPRINT_SLOTS", "4194304")));
+            }
+
+            serv.setErrorQueue(get_config("PI_JMS_ERROR_QUEUE", null),
+                    Integer.parseInt(get_config("PI_JMS_MAX_DELIVERIES", "5")));
+            serv.setMessageGroups(get_config("PI_JMS_GROUP_QUEUE", null),
+                    Integer.parseInt(get_config("PI_JMS_GROUP_BUCKETS", "64")),
+                    Long.parseLong(get_config("PI_JMS_GROUP_REBALANCE_MS", "0")));
+            serv.setAckBatch(Integer.parseInt(get_config("PI_JMS_ACK_BATCH_SIZE", "0")),
+                    Long.parseLong(get_config("PI_JMS_ACK_BATCH_LATENCY_MS", "1000")));
+            serv.setValidatorCacheSize(Integer.parseInt(get_config("PI_FEDORA_VALIDATOR_CACHE_SIZE", "0")));
+            serv.setPartialUpdateCacheSize(Integer.parseInt(get_config("PI_ES_PARTIAL_UPDATE_CACHE_SIZE", "0")));
+            serv.setExternalVersioning(Boolean.parseBoolean(get_config("PI_ES_EXTERNAL_VERSIONING", "false")),
+                    get_config("PI_ES_GC_DELETES", "1h"));
+            serv.setMappingRefreshInterval(Long.parseLong(get_config("PI_ES_MAPPING_REFRESH_MS", "60000")));
+            serv.setPipelined(Boolean.parseBoolean(get_config("PI_PIPELINE", "false")));
+            serv.setCoalesceWindow(Long.parseLong(get_config("PI_COALESCE_WINDOW_MS", "0")));
+            serv.setLanes(Integer.parseInt(get_config("PI_LANES", "0")));
+            serv.setVirtualThreads(Boolean.parseBoolean(get_config("PI_VIRTUAL_THREADS", "false")));
+            serv.setBulkMaxActions(Integer.parseInt(get_config("PI_ES_BULK_SIZE", "0")));
+            serv.setBulkMaxBytes(Long.parseLong(get_config("PI_ES_BULK_BYTES", "5242880")));
+            serv.setBulkMaxLatency(Long.parseLong(get_config("PI_ES_BULK_LATENCY_MS", "1000")));
             
             System.out.println("Starting Fedora indexing service.");
 
             serv.start();
 
-            try {
+            String metrics_port = get_config("PI_METRICS_PORT", null);
+
+            try (MetricsEndpoint metrics = metrics_port == null ? null
+                    : new MetricsEndpoint(Integer.parseInt(metrics_port), serv.getMetrics())) {
+                if (metrics != null) {
+                    System.out.println("Serving metrics on port " + metrics_port + " at /metrics");
+                }
+
                 Thread.currentThread().join();
             } catch (InterruptedException e) {
                 System.out.println("Fedora index service interrupted: " + e);
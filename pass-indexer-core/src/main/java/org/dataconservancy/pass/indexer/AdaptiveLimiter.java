@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.indexer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limit the number of operations in progress with a limit which adapts to overload.
+ * The limit is halved when the server signals overload, at most once per interval so a burst of
+ * rejections from the same wave of requests counts once. It grows by one after a limit's worth of
+ * successes, up to the maximum.
+ */
+final class AdaptiveLimiter {
+    private final int max_limit;
+    private final long decrease_interval_nanos;
+
+    // Guarded by this
+    private int limit;
+    private int in_use;
+    private int successes;
+    private long last_decrease;
+
+    /**
+     * @param max_limit - Limit when there is no overload.
+     * @param decrease_interval_ms - Minimum time between decreases of the limit.
+     */
+    AdaptiveLimiter(int max_limit, long decrease_interval_ms) {
+        this.max_limit = max_limit;
+        this.limit = max_limit;
+        this.decrease_interval_nanos = TimeUnit.MILLISECONDS.toNanos(decrease_interval_ms);
+        this.last_decrease = System.nanoTime() - decrease_interval_nanos;
+    }
+
+    /**
+     * Wait until an operation may start.
+     *
+     * @throws InterruptedException
+     */
+    synchronized void acquire() throws InterruptedException {
+        while (in_use >= limit) {
+            wait();
+        }
+
+        in_use++;
+    }
+
+    synchronized void release() {
+        in_use--;
+        notifyAll();
+    }
+
+    synchronized void onSuccess() {
+        if (limit < max_limit && ++successes >= limit) {
+            limit++;
+            successes = 0;
+            notifyAll();
+        }
+    }
+
+    synchronized void onOverload() {
+        long now = System.nanoTime();
+
+        if (now - last_decrease >= decrease_interval_nanos) {
+            limit = Math.max(1, limit / 2);
+            successes = 0;
+            last_decrease = now;
+        }
+    }
+
+    synchronized int getLimit() {
+        return limit;
+    }
+}
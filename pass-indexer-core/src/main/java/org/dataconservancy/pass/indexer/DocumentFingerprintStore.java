@@ -0,0 +1,264 @@
+/*
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.dataconservancy.pass.indexer;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Fingerprints of the documents in an index by document id, so a write of a document identical to
+ * the indexed one can be skipped. The store is an open addressing hash table with linear probing in
+ * a memory mapped file, which persists across restarts and does not use the heap.
+ *
+ * Each slot holds a 64 bit hash of the document id and a 64 bit fingerprint of the document. The
+ * fingerprint is computed from a canonical form of the JSON, with keys sorted, so the same document
+ * has the same fingerprint whether it is normalized from Fedora or read back from the index.
+ *
+ * The table never grows. When a probe sequence is too long, the last slot probed is taken over.
+ * Losing a fingerprint only means a document is written again. A fingerprint which no longer matches
+ * the indexed document is another matter: a write of a document identical to the recorded one is
+ * then skipped wrongly. The store must therefore only be used by the one process writing the index,
+ * and cleared or rebuilt whenever the index is written by anything else or replaced.
+ */
+public class DocumentFingerprintStore implements AutoCloseable {
+    private static final long MAGIC = 0x5041535346505331L;
+    private static final int HEADER = 16;
+    private static final int SLOT = 16;
+    private static final int MAX_PROBES = 32;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer table;
+    private final int slots;
+
+    /**
+     * Open the store, creating it if needed.
+     *
+     * @param file
+     * @param slots - Number of documents which fit in a new store. Rounded up to a power of two.
+     * @throws IOException if the file is not a fingerprint store.
+     */
+    public DocumentFingerprintStore(Path file, int slots) throws IOException {
+        boolean exists = Files.exists(file) && Files.size(file) > 0;
+
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+        if (exists) {
+            MappedByteBuffer header = channel.map(MapMode.READ_ONLY, 0, HEADER);
+
+            if (header.getLong(0) != MAGIC) {
+                channel.close();
+                throw new IOException("Not a fingerprint store: " + file);
+            }
+
+            slots = header.getInt(8);
+        } else {
+            slots = Integer.highestOneBit(Math.max(2, slots) * 2 - 1);
+        }
+
+        if ((long) slots * SLOT > Integer.MAX_VALUE - HEADER) {
+            channel.close();
+            throw new IOException("Too many slots for fingerprint store: " + slots);
+        }
+
+        this.slots = slots;
+        this.table = channel.map(MapMode.READ_WRITE, 0, HEADER + (long) slots * SLOT);
+
+        if (!exists) {
+            table.putInt(8, slots);
+            table.putLong(0, MAGIC);
+        }
+    }
+
+    // Return first 8 bytes of the MD5 digest, never 0 which marks an empty slot or removed document.
+    private static long hash(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(data);
+            long result = 0;
+
+            for (int i = 0; i < 8; i++) {
+                result = (result << 8) | (digest[i] & 0xff);
+            }
+
+            return result == 0 ? 1 : result;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param doc
+     * @return Fingerprint of the canonical form of the document.
+     */
+    public static long fingerprint(JSONObject doc) {
+        StringBuilder canonical = new StringBuilder();
+        write_canonical(doc, canonical);
+        return hash(canonical.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param doc
+     * @return Fingerprint of the canonical form of each top level field by name.
+     */
+    public static Map<String, Long> fieldFingerprints(JSONObject doc) {
+        Map<String, Long> result = new HashMap<>();
+
+        for (String name : doc.keySet()) {
+            StringBuilder canonical = new StringBuilder();
+            write_canonical(doc.get(name), canonical);
+            result.put(name, hash(canonical.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+
+        return result;
+    }
+
+    private static void write_canonical(Object value, StringBuilder out) {
+        if (value instanceof JSONObject) {
+            JSONObject obj = (JSONObject) value;
+            List<String> keys = new ArrayList<>(obj.keySet());
+            Collections.sort(keys);
+
+            out.append('{');
+
+            for (int i = 0; i < keys.size(); i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+
+                out.append(JSONObject.quote(keys.get(i))).append(':');
+                write_canonical(obj.get(keys.get(i)), out);
+            }
+
+            out.append('}');
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+
+            out.append('[');
+
+            for (int i = 0; i < array.length(); i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+
+                write_canonical(array.get(i), out);
+            }
+
+            out.append(']');
+        } else if (value instanceof String) {
+            out.append(JSONObject.quote((String) value));
+        } else {
+            out.append(JSONObject.valueToString(value));
+        }
+    }
+
+    // Return offset of the slot for the key: the slot holding it, else an empty slot, else the last probed.
+    private int find(long key) {
+        int slot = (int) (key ^ (key >>> 32)) & (slots - 1);
+        int offset = 0;
+
+        for (int i = 0; i < MAX_PROBES; i++) {
+            offset = HEADER + slot * SLOT;
+            long k = table.getLong(offset);
+
+            if (k == key || k == 0) {
+                return offset;
+            }
+
+            slot = (slot + 1) & (slots - 1);
+        }
+
+        return offset;
+    }
+
+    /**
+     * @param doc_id
+     * @param fingerprint
+     * @return Whether the indexed document with the id has the fingerprint.
+     */
+    public synchronized boolean contains(String doc_id, long fingerprint) {
+        long key = hash(doc_id.getBytes(StandardCharsets.UTF_8));
+        int offset = find(key);
+
+        return table.getLong(offset) == key && table.getLong(offset + 8) == fingerprint;
+    }
+
+    /**
+     * Record the fingerprint of a written document.
+     *
+     * @param doc_id
+     * @param fingerprint
+     */
+    public synchronized void put(String doc_id, long fingerprint) {
+        long key = hash(doc_id.getBytes(StandardCharsets.UTF_8));
+        int offset = find(key);
+
+        // Clear the fingerprint before taking over a slot so a new key never pairs with an old fingerprint
+        if (table.getLong(offset) != key) {
+            table.putLong(offset + 8, 0);
+            table.putLong(offset, key);
+        }
+
+        table.putLong(offset + 8, fingerprint);
+    }
+
+    /**
+     * Forget the fingerprint of a deleted document. The slot stays in use so probe sequences are kept.
+     *
+     * @param doc_id
+     */
+    public synchronized void remove(String doc_id) {
+        long key = hash(doc_id.getBytes(StandardCharsets.UTF_8));
+        int offset = find(key);
+
+        if (table.getLong(offset) == key) {
+            table.putLong(offset + 8, 0);
+        }
+    }
+
+    /**
+     * Forget every fingerprint.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < slots; i++) {
+            table.putLong(HEADER + i * SLOT, 0);
+            table.putLong(HEADER + i * SLOT + 8, 0);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        table.force();
+        channel.close();
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.indexer;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.Year;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Turn the compact JSON-LD representation of a Fedora resource into a document which can be indexed.
+ * The inline @context, properties not in the index mapping, and properties with object values are removed.
+ *
+ * The index mapping is compiled into a check for each property. Dates are normalized to ISO 8601
+ * in UTC, except for a year or a year and month which are kept as they are, and booleans and numbers
+ * given as strings are turned into literals. Dates with a format of their own in the mapping are left
+ * for Elasticsearch to check. A value which
+ * Elasticsearch would reject is removed along with a warning, so one bad value does not cost a
+ * failed write of the whole document. Rejected values are counted by property.
+ *
+ * The document is streamed from reader to writer a token at a time. Large values are copied
+ * through a small buffer and never held in memory as a whole.
+ */
+final class DocumentNormalizer {
+    private static final Logger LOG = LoggerFactory.getLogger(DocumentNormalizer.class);
+
+    // Date formats of a mapping which the date check accepts, the Elasticsearch default
+    private static final Set<String> CHECKED_DATE_FORMATS = new HashSet<>(
+            Arrays.asList("strict_date_optional_time", "date_optional_time", "epoch_millis"));
+
+    // How values of a property are checked
+    enum FieldType {
+        ANY, DATE, BOOLEAN, NUMBER
+    }
+
+    private final Map<String, FieldType> fields;
+    private final Map<String, AtomicLong> rejected;
+    private IndexerMetrics metrics;
+
+    /**
+     * @param fields - Type of each property in the index mapping.
+     */
+    DocumentNormalizer(Map<String, FieldType> fields) {
+        this(fields, new ConcurrentHashMap<>(), new IndexerMetrics());
+    }
+
+    private DocumentNormalizer(Map<String, FieldType> fields, Map<String, AtomicLong> rejected,
+            IndexerMetrics metrics) {
+        this.fields = fields;
+        this.rejected = rejected;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param metrics - Receives counts of removed properties.
+     */
+    void setMetrics(IndexerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param properties - Properties of an index mapping.
+     * @return Normalizer checking values against the mapping.
+     */
+    static DocumentNormalizer compile(JSONObject properties) {
+        Map<String, FieldType> fields = new HashMap<>();
+
+        for (String key : properties.keySet()) {
+            JSONObject property = properties.getJSONObject(key);
+            String type = property.optString("type");
+
+            switch (type) {
+            case "date":
+                String format = property.optString("format");
+                boolean checked = format.isEmpty()
+                        || CHECKED_DATE_FORMATS.containsAll(Arrays.asList(format.split("\\|\\|")));
+
+                fields.put(key, checked ? FieldType.DATE : FieldType.ANY);
+                break;
+            case "boolean":
+                fields.put(key, FieldType.BOOLEAN);
+                break;
+            case "long":
+            case "integer":
+            case "short":
+            case "byte":
+            case "double":
+            case "float":
+            case "half_float":
+            case "scaled_float":
+                fields.put(key, FieldType.NUMBER);
+                break;
+            default:
+                fields.put(key, FieldType.ANY);
+                break;
+            }
+        }
+
+        return new DocumentNormalizer(fields);
+    }
+
+    /**
+     * @param properties - Properties of a changed index mapping.
+     * @return Normalizer checking values against the mapping which shares the counts and metrics of this one.
+     */
+    DocumentNormalizer recompile(JSONObject properties) {
+        return new DocumentNormalizer(compile(properties).fields, rejected, metrics);
+    }
+
+    /**
+     * @return Names of properties in the index mapping.
+     */
+    Set<String> getSupportedFields() {
+        return Collections.unmodifiableSet(fields.keySet());
+    }
+
+    /**
+     * @return Number of values removed from documents by property.
+     */
+    Map<String, Long> getRejectedCounts() {
+        Map<String, Long> result = new HashMap<>();
+        rejected.forEach((k, v) -> result.put(k, v.get()));
+        return result;
+    }
+
+    private void reject(String key, String value) {
+        LOG.warn("Property with invalid value ignored: " + key + ", " + value);
+        rejected.computeIfAbsent(key, k -> new AtomicLong()).incrementAndGet();
+        metrics.countDroppedField(key, IndexerMetrics.INVALID);
+    }
+
+    // Return date as ISO 8601 or null if invalid.
+    // Numbers are milliseconds since the epoch. Date times without an offset are UTC.
+    private static String coerce_date(JsonStreamReader.Token token, String value) {
+        try {
+            if (token == JsonStreamReader.Token.NUMBER || (value.length() > 4 && value.matches("-?\\d+"))) {
+                return DateTimeFormatter.ISO_INSTANT.format(Instant.ofEpochMilli(Long.parseLong(value)));
+            }
+
+            if (token != JsonStreamReader.Token.STRING) {
+                return null;
+            }
+
+            if (value.indexOf('T') == -1) {
+                // Elasticsearch also accepts a year or a year and month
+                switch (value.length()) {
+                case 4:
+                    return Year.parse(value).toString();
+                case 7:
+                    return YearMonth.parse(value).toString();
+                default:
+                    return DateTimeFormatter.ISO_LOCAL_DATE.format(LocalDate.parse(value));
+                }
+            }
+
+            TemporalAccessor t = DateTimeFormatter.ISO_DATE_TIME.parse(value);
+
+            Instant instant = t.isSupported(ChronoField.OFFSET_SECONDS) ? Instant.from(t)
+                    : LocalDateTime.from(t).toInstant(ZoneOffset.UTC);
+
+            return DateTimeFormatter.ISO_INSTANT.format(instant);
+        } catch (DateTimeParseException | ArithmeticException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Return JSON for a coerced scalar value or null if invalid.
+    private static String coerce(FieldType type, JsonStreamReader.Token token, String value) {
+        if (token == JsonStreamReader.Token.NULL) {
+            return value;
+        }
+
+        switch (type) {
+        case DATE:
+            String date = coerce_date(token, value);
+            return date == null ? null : "\"" + date + "\"";
+        case BOOLEAN:
+            return value.equals("true") || value.equals("false") ? value : null;
+        case NUMBER:
+            if (token == JsonStreamReader.Token.NUMBER) {
+                return value;
+            }
+
+            if (token == JsonStreamReader.Token.STRING) {
+                try {
+                    return new BigDecimal(value.trim()).toString();
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+
+            return null;
+        default:
+            throw new IllegalArgumentException("No coercion for " + type);
+        }
+    }
+
+    // Read scalar and return it coerced or null if invalid. Nested values are skipped and invalid.
+    private String read_coerced(String key, FieldType type, JsonStreamReader reader) throws IOException {
+        JsonStreamReader.Token token = reader.peek();
+
+        if (token == JsonStreamReader.Token.BEGIN_OBJECT || token == JsonStreamReader.Token.BEGIN_ARRAY) {
+            reader.skipValue();
+            reject(key, "nested " + token);
+            return null;
+        }
+
+        String value = token == JsonStreamReader.Token.STRING ? reader.nextString() : reader.nextLiteral();
+        String result = coerce(type, token, value);
+
+        if (result == null) {
+            reject(key, value);
+        }
+
+        return result;
+    }
+
+    // Copy property with type checked values. An array keeps its valid elements.
+    private void copy_checked(String key, FieldType type, JsonStreamReader reader, JsonStreamWriter writer)
+            throws IOException {
+        if (reader.peek() == JsonStreamReader.Token.BEGIN_ARRAY) {
+            reader.beginArray();
+            writer.name(key);
+            writer.beginArray();
+
+            while (reader.hasNext()) {
+                String value = read_coerced(key, type, reader);
+
+                if (value != null) {
+                    writer.literal(value);
+                }
+            }
+
+            reader.endArray();
+            writer.endArray();
+        } else {
+            String value = read_coerced(key, type, reader);
+
+            if (value != null) {
+                writer.name(key);
+                writer.literal(value);
+            }
+        }
+    }
+
+    /**
+     * @param in - JSON object
+     * @param out - Receives normalized JSON object which is flushed but not closed.
+     * @throws IOException
+     */
+    void normalize(Reader in, Writer out) throws IOException {
+        JsonStreamReader reader = new JsonStreamReader(in);
+        JsonStreamWriter writer = new JsonStreamWriter(out);
+
+        reader.beginObject();
+        writer.beginObject();
+
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+
+            // TODO For the moment remove inline @context which Elasticsearch cannot handle
+            if (key.equals("@context")) {
+                reader.skipValue();
+                continue;
+            }
+
+            FieldType type = fields.get(key);
+
+            if (type == null) {
+                LOG.warn("Unexpected property ignored: " + key);
+                metrics.countDroppedField(key, IndexerMetrics.UNMAPPED);
+                reader.skipValue();
+            } else if (reader.peek() == JsonStreamReader.Token.BEGIN_OBJECT) {
+                LOG.warn("Property with object value ignored: " + key);
+                metrics.countDroppedField(key, IndexerMetrics.OBJECT);
+                reader.skipValue();
+            } else if (type == FieldType.ANY) {
+                writer.name(key);
+                reader.copyValue(writer);
+            } else {
+                copy_checked(key, type, reader, writer);
+            }
+        }
+
+        reader.endObject();
+        writer.endObject();
+        writer.flush();
+    }
+
+    /**
+     * @param json
+     * @return Normalized JSON
+     * @throws IOException
+     */
+    String normalize(String json) throws IOException {
+        StringWriter out = new StringWriter();
+        normalize(new StringReader(json), out);
+        return out.toString();
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.indexer;
+
+import java.io.IOException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Manage an Elasticsearch alias which points at one of a series of versioned indexes.
+ * Searches and live updates use the alias. A rebuild creates the next versioned index and marks it
+ * with a second alias, the name of the alias followed by {@value #NEXT_SUFFIX}, so live updates can
+ * be written to it as well. When the rebuild is done, the alias is moved to the new index in one
+ * atomic request and the old index is dropped.
+ *
+ * The next index is created with bulk load settings, no refresh and no replicas, which are restored
+ * from the index configuration when the load is finished.
+ */
+public class ElasticSearchAliasManager {
+    private static final Logger LOG = LoggerFactory.getLogger(ElasticSearchAliasManager.class);
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    private static final DateTimeFormatter VERSION_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+
+    public static final String NEXT_SUFFIX = "_next";
+
+    private final OkHttpClient client;
+    private final HttpUrl es_url;
+    private final String alias;
+
+    /**
+     * @param es_alias_url - URL of the alias such as http://localhost:9200/pass/
+     */
+    public ElasticSearchAliasManager(String es_alias_url) {
+        this.client = new OkHttpClient();
+
+        HttpUrl url = HttpUrl.parse(es_alias_url);
+
+        if (url == null) {
+            throw new IllegalArgumentException("Invalid Elasticsearch index URL: " + es_alias_url);
+        }
+
+        // Ignore trailing slash
+        int last = url.pathSize() - 1;
+
+        if (url.pathSegments().get(last).isEmpty()) {
+            last--;
+        }
+
+        this.alias = url.pathSegments().get(last);
+        this.es_url = url.newBuilder().removePathSegment(last).build();
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    /**
+     * @param index
+     * @return URL of the index ending in a slash.
+     */
+    public String getIndexUrl(String index) {
+        return es_url.newBuilder().addPathSegment(index).addPathSegment("").build().toString();
+    }
+
+    private String url(String path) {
+        return es_url.toString() + path;
+    }
+
+    // Execute request and return the JSON result or null if not found.
+    private JSONObject execute(Request request, String description) throws IOException {
+        try (Response response = client.newCall(request).execute()) {
+            String result = response.body().string();
+
+            if (response.code() == 404) {
+                return null;
+            }
+
+            if (!response.isSuccessful()) {
+                String msg = "Failed to " + description + ": " + response.code() + " " + result;
+                LOG.error(msg);
+                throw new IOException(msg);
+            }
+
+            return result.isEmpty() ? new JSONObject() : new JSONObject(result);
+        }
+    }
+
+    // Return the indexes with the alias.
+    private Set<String> get_indexes(String alias) throws IOException {
+        Request get = new Request.Builder().url(url("_alias/" + alias)).build();
+        JSONObject result = execute(get, "retrieve alias " + alias);
+
+        return result == null ? new TreeSet<>() : new TreeSet<>(result.keySet());
+    }
+
+    /**
+     * @return Indexes the alias points at.
+     * @throws IOException
+     */
+    public Set<String> getIndexes() throws IOException {
+        return get_indexes(alias);
+    }
+
+    /**
+     * @return Index being built to replace the current one or null if there is none.
+     * @throws IOException
+     */
+    public String getNextIndex() throws IOException {
+        Set<String> result = get_indexes(alias + NEXT_SUFFIX);
+
+        return result.isEmpty() ? null : result.iterator().next();
+    }
+
+    private String version_index_name() {
+        return alias + "_" + VERSION_FORMAT.format(ZonedDateTime.now(ZoneOffset.UTC));
+    }
+
+    private void create_index(String index, JSONObject config) throws IOException {
+        Request put = new Request.Builder().url(getIndexUrl(index)).put(RequestBody.create(JSON, config.toString()))
+                .build();
+
+        if (execute(put, "create index " + index) == null) {
+            throw new IOException("Failed to create index " + index + ": not found");
+        }
+
+        LOG.info("Created index " + index);
+    }
+
+    // Return object at key in config, creating it if needed.
+    private static JSONObject child(JSONObject config, String key) {
+        if (!config.has(key)) {
+            config.put(key, new JSONObject());
+        }
+
+        return config.getJSONObject(key);
+    }
+
+    // Return index setting from config which may use nested or flat keys.
+    private static Object get_setting(JSONObject config, String key, Object default_value) {
+        JSONObject settings = config.optJSONObject("settings");
+
+        if (settings == null) {
+            return default_value;
+        }
+
+        JSONObject index = settings.optJSONObject("index");
+
+        if (index != null && index.has(key)) {
+            return index.get(key);
+        }
+
+        if (settings.has("index." + key)) {
+            return settings.get("index." + key);
+        }
+
+        return settings.has(key) ? settings.get(key) : default_value;
+    }
+
+    /**
+     * Make sure the alias exists. If there is neither an alias nor an index with its name, a
+     * versioned index is created from the configuration and the alias pointed at it.
+     *
+     * @param es_index_config - Either file or resource path to index config. If null, use provided PASS configuration.
+     * @throws IOException if the name is used by an index instead of an alias.
+     */
+    public void ensureAlias(String es_index_config) throws IOException {
+        if (!getIndexes().isEmpty()) {
+            return;
+        }
+
+        Request head = new Request.Builder().url(getIndexUrl(alias)).head().build();
+
+        try (Response response = client.newCall(head).execute()) {
+            if (response.isSuccessful()) {
+                String msg = "Cannot use " + alias + " as an alias because it is an index";
+                LOG.error(msg);
+                throw new IOException(msg);
+            }
+        }
+
+        JSONObject config = ElasticSearchIndexer.load_index_configuration(es_index_config);
+        child(config, "aliases").put(alias, new JSONObject());
+
+        String index = version_index_name();
+
+        LOG.info("Alias does not exist. Creating " + index + " with alias " + alias);
+        create_index(index, config);
+    }
+
+    /**
+     * Create the next versioned index with bulk load settings.
+     *
+     * @param es_index_config - Either file or resource path to index config. If null, use provided PASS configuration.
+     * @return Name of the index.
+     * @throws IOException
+     */
+    public String createNextIndex(String es_index_config) throws IOException {
+        JSONObject config = ElasticSearchIndexer.load_index_configuration(es_index_config);
+
+        JSONObject index_settings = child(child(config, "settings"), "index");
+        index_settings.put("refresh_interval", "-1");
+        index_settings.put("number_of_replicas", 0);
+
+        child(config, "aliases").put(alias + NEXT_SUFFIX, new JSONObject());
+
+        String index = version_index_name();
+
+        create_index(index, config);
+
+        return index;
+    }
+
+    /**
+     * Restore the refresh interval and replicas of the configuration and refresh the index.
+     *
+     * @param index
+     * @param es_index_config - Either file or resource path to index config. If null, use provided PASS configuration.
+     * @throws IOException
+     */
+    public void finishBulkLoad(String index, String es_index_config) throws IOException {
+        JSONObject config = ElasticSearchIndexer.load_index_configuration(es_index_config);
+
+        JSONObject settings = new JSONObject();
+        settings.put("refresh_interval", get_setting(config, "refresh_interval", "1s"));
+        settings.put("number_of_replicas", get_setting(config, "number_of_replicas", 1));
+
+        Request put = new Request.Builder().url(getIndexUrl(index) + "_settings")
+                .put(RequestBody.create(JSON, new JSONObject().put("index", settings).toString())).build();
+
+        execute(put, "restore settings of index " + index);
+
+        Request refresh = new Request.Builder().url(getIndexUrl(index) + "_refresh")
+                .post(RequestBody.create(JSON, "")).build();
+
+        execute(refresh, "refresh index " + index);
+
+        LOG.info("Finished bulk load of index " + index + " with settings " + settings);
+    }
+
+    /**
+     * Atomically move the alias to the index and remove the next alias from it.
+     *
+     * @param index
+     * @return Indexes the alias pointed at before.
+     * @throws IOException
+     */
+    public Set<String> swap(String index) throws IOException {
+        Set<String> old = getIndexes();
+        old.remove(index);
+
+        JSONArray actions = new JSONArray();
+
+        for (String i : old) {
+            actions.put(new JSONObject().put("remove", new JSONObject().put("index", i).put("alias", alias)));
+        }
+
+        actions.put(new JSONObject().put("add", new JSONObject().put("index", index).put("alias", alias)));
+        actions.put(new JSONObject().put("remove",
+                new JSONObject().put("index", index).put("alias", alias + NEXT_SUFFIX)));
+
+        Request post = new Request.Builder().url(url("_aliases"))
+                .post(RequestBody.create(JSON, new JSONObject().put("actions", actions).toString())).build();
+
+        if (execute(post, "swap alias " + alias + " to " + index) == null) {
+            throw new IOException("Failed to swap alias " + alias + " to " + index + ": not found");
+        }
+
+        LOG.info("Alias " + alias + " moved from " + old + " to " + index);
+
+        return old;
+    }
+
+    /**
+     * @param index
+     * @throws IOException
+     */
+    public void deleteIndex(String index) throws IOException {
+        Request delete = new Request.Builder().url(getIndexUrl(index)).delete().build();
+
+        execute(delete, "delete index " + index);
+
+        LOG.info("Deleted index " + index);
+    }
+}
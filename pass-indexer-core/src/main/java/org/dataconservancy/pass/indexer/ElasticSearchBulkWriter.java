@@ -0,0 +1,311 @@
+/*
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.indexer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.Buffer;
+
+/**
+ * Batch document writes to an Elasticsearch index into _bulk requests.
+ *
+ * Actions are buffered as NDJSON and flushed when the number of actions, the size of the
+ * request body, or the age of the oldest buffered action reaches a configured limit.
+ * Each action is paired with the Fedora message which caused it. The outcome of the
+ * corresponding bulk item is reported through the future returned when the action was added.
+ *
+ * Bulk requests are sent one at a time so actions on the same document are applied in the
+ * order they were added.
+ */
+public class ElasticSearchBulkWriter implements AutoCloseable {
+    private static final MediaType NDJSON = MediaType.parse("application/x-ndjson");
+    private static final Logger LOG = LoggerFactory.getLogger(ElasticSearchBulkWriter.class);
+
+    // Equal versions are accepted so events in the same millisecond and retries are applied
+    static final String VERSION_TYPE = "external_gte";
+
+    private final OkHttpClient client;
+    private final String bulk_url;
+    private final int max_actions;
+    private final long max_bytes;
+    private final long max_latency_ms;
+    private final ScheduledExecutorService timer;
+    private final ReentrantLock send_lock;
+    private volatile boolean versioned;
+
+    // Pending actions guarded by this
+    private Buffer body;
+    private List<BulkItem> items;
+    private ScheduledFuture<?> deadline;
+
+    // Action waiting on the result of a bulk item.
+    private static class BulkItem {
+        final FedoraMessage msg;
+        final String doc_id;
+        // Bulk action: index, update, or delete
+        final String action;
+        final boolean delete;
+        final CompletableFuture<Void> result;
+
+        BulkItem(FedoraMessage msg, String doc_id, String action) {
+            this.msg = msg;
+            this.doc_id = doc_id;
+            this.action = action;
+            this.delete = action.equals("delete");
+            this.result = new CompletableFuture<>();
+        }
+    }
+
+    /**
+     * @param client
+     * @param es_index_url - Index URL ending in a slash.
+     * @param max_actions - Flush when this many actions are buffered.
+     * @param max_bytes - Flush when the buffered request body reaches this size.
+     * @param max_latency_ms - Flush when the oldest buffered action is this old.
+     */
+    public ElasticSearchBulkWriter(OkHttpClient client, String es_index_url, int max_actions, long max_bytes,
+            long max_latency_ms) {
+        this.client = client;
+        this.bulk_url = es_index_url + "_doc/_bulk";
+        this.max_actions = max_actions;
+        this.max_bytes = max_bytes;
+        this.max_latency_ms = max_latency_ms;
+        this.send_lock = new ReentrantLock(true);
+        this.body = new Buffer();
+        this.items = new ArrayList<>();
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "es-bulk-flush");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @param versioned - Whether index and delete actions carry the timestamp of their message as an
+     *        external version. A version conflict fails the action with status 409.
+     */
+    public void setExternalVersioning(boolean versioned) {
+        this.versioned = versioned;
+    }
+
+    /**
+     * Add an action which creates or replaces a document.
+     *
+     * @param doc_id
+     * @param doc - Document serialized on a single line. The content is moved into the bulk request.
+     * @param m - Message which caused the action.
+     * @return Future completed when the bulk item succeeds or fails.
+     */
+    public CompletableFuture<Void> index(String doc_id, Buffer doc, FedoraMessage m) {
+        return add(new BulkItem(m, doc_id, "index"), doc);
+    }
+
+    /**
+     * Add an action which changes some fields of an existing document. A missing document fails the
+     * action with status 404.
+     *
+     * @param doc_id
+     * @param partial_doc - Fields to change serialized on a single line. The content is moved into the bulk request.
+     * @param m - Message which caused the action.
+     * @return Future completed when the bulk item succeeds or fails.
+     */
+    public CompletableFuture<Void> update(String doc_id, Buffer partial_doc, FedoraMessage m) {
+        Buffer doc = new Buffer().writeUtf8("{\"doc\":");
+        doc.write(partial_doc, partial_doc.size());
+        doc.writeUtf8("}");
+
+        return add(new BulkItem(m, doc_id, "update"), doc);
+    }
+
+    /**
+     * Add an action which deletes a document. A missing document is not considered a failure.
+     *
+     * @param doc_id
+     * @param m - Message which caused the action.
+     * @return Future completed when the bulk item succeeds or fails.
+     */
+    public CompletableFuture<Void> delete(String doc_id, FedoraMessage m) {
+        return add(new BulkItem(m, doc_id, "delete"), null);
+    }
+
+    private CompletableFuture<Void> add(BulkItem item, Buffer doc) {
+        boolean full;
+
+        synchronized (this) {
+            JSONObject meta = new JSONObject().put("_id", item.doc_id);
+
+            if (versioned && !item.action.equals("update") && item.msg.getTimestamp() > 0) {
+                meta.put("version", item.msg.getTimestamp()).put("version_type", VERSION_TYPE);
+            }
+            JSONObject action = new JSONObject().put(item.action, meta);
+
+            body.writeUtf8(action.toString()).writeByte('\n');
+
+            if (doc != null) {
+                body.write(doc, doc.size());
+                body.writeByte('\n');
+            }
+
+            items.add(item);
+
+            if (deadline == null) {
+                deadline = timer.schedule(this::flush_quietly, max_latency_ms, TimeUnit.MILLISECONDS);
+            }
+
+            full = items.size() >= max_actions || body.size() >= max_bytes;
+        }
+
+        if (full) {
+            flush_quietly();
+        }
+
+        return item.result;
+    }
+
+    /**
+     * Send all buffered actions to Elasticsearch. Failures are reported through the futures of the
+     * individual actions.
+     */
+    public void flush() {
+        send_lock.lock();
+
+        try {
+            Buffer batch_body;
+            List<BulkItem> batch;
+
+            synchronized (this) {
+                if (deadline != null) {
+                    deadline.cancel(false);
+                    deadline = null;
+                }
+
+                if (items.isEmpty()) {
+                    return;
+                }
+
+                batch_body = body;
+                batch = items;
+                body = new Buffer();
+                items = new ArrayList<>();
+            }
+
+            send(batch_body, batch);
+        } finally {
+            send_lock.unlock();
+        }
+    }
+
+    // Flush from timer or writer thread. Request failures are reported through the futures of the actions.
+    private void flush_quietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            LOG.error("Unexpected error flushing bulk request", e);
+        }
+    }
+
+    private void send(Buffer batch_body, List<BulkItem> batch) {
+        LOG.debug("Sending bulk request with " + batch.size() + " actions and " + batch_body.size() + " bytes");
+
+        RequestBody req_body = RequestBody.create(NDJSON, batch_body.readByteString());
+        Request post = new Request.Builder().url(bulk_url).post(req_body).build();
+
+        JSONObject result;
+
+        try (Response response = client.newCall(post).execute()) {
+            String text = response.body().string();
+
+            if (!response.isSuccessful()) {
+                fail_all(batch, new ElasticSearchException("Bulk request failure: " + response.code() + " " + text,
+                        response.code()));
+                return;
+            }
+
+            result = new JSONObject(text);
+        } catch (IOException | RuntimeException e) {
+            fail_all(batch, e instanceof IOException ? new ElasticSearchException("Bulk request failure", e)
+                    : new IOException("Bulk request failure", e));
+            return;
+        }
+
+        if (!result.optBoolean("errors", false)) {
+            batch.forEach(i -> i.result.complete(null));
+            return;
+        }
+
+        try {
+            JSONArray results = result.getJSONArray("items");
+
+            for (int i = 0; i < batch.size(); i++) {
+                BulkItem item = batch.get(i);
+
+                // Each item result is an object with one key, the action
+                JSONObject item_result = results.getJSONObject(i);
+                item_result = item_result.getJSONObject(item_result.keys().next());
+
+                int status = item_result.optInt("status", 500);
+
+                if (status < 300 || (item.delete && status == 404)) {
+                    item.result.complete(null);
+                } else {
+                    String msg = "Bulk " + item.action + " failure for " + item.msg + ": "
+                            + status + " " + item_result.opt("error");
+
+                    if (versioned && status == 409) {
+                        LOG.debug(msg);
+                    } else {
+                        LOG.error(msg);
+                    }
+
+                    item.result.completeExceptionally(new ElasticSearchException(msg, status));
+                }
+            }
+        } catch (RuntimeException e) {
+            // Items already completed are not affected
+            fail_all(batch, new IOException("Unexpected bulk response: " + result, e));
+        }
+    }
+
+    private void fail_all(List<BulkItem> batch, Exception e) {
+        LOG.error("Bulk request with " + batch.size() + " actions failed", e);
+        batch.forEach(i -> i.result.completeExceptionally(e));
+    }
+
+    @Override
+    public void close() {
+        flush_quietly();
+        timer.shutdown();
+    }
+}
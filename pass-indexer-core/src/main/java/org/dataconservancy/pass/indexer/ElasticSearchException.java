@@ -0,0 +1,72 @@
+/*
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.indexer;
+
+import java.io.IOException;
+
+/**
+ * Failure of an Elasticsearch request or bulk item. A failure is retryable if Elasticsearch is
+ * overloaded or unavailable, or the request could not be made at all. Otherwise it is permanent,
+ * for example when a document does not match the mapping, and trying again would not help.
+ */
+public class ElasticSearchException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+    private final boolean retryable;
+
+    /**
+     * @param msg
+     * @param status - HTTP status of the response or item.
+     */
+    public ElasticSearchException(String msg, int status) {
+        super(msg);
+        this.status = status;
+        this.retryable = isRetryable(status);
+    }
+
+    /**
+     * Request could not be made. This is retryable.
+     *
+     * @param msg
+     * @param cause
+     */
+    public ElasticSearchException(String msg, Throwable cause) {
+        super(msg, cause);
+        this.status = 0;
+        this.retryable = true;
+    }
+
+    /**
+     * @param status
+     * @return Whether a response with this status means the request should be tried again later.
+     */
+    public static boolean isRetryable(int status) {
+        return status == 429 || status == 502 || status == 503 || status == 504;
+    }
+
+    /**
+     * @return HTTP status or 0 if there was no response.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    public boolean isRetryable() {
+        return retryable;
+    }
+}
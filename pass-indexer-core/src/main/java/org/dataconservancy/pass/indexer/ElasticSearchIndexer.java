@@ -2,27 +2,43 @@ package org.dataconservancy.pass.indexer;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Base64;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.Credentials;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSink;
 
 
 /**
@@ -33,26 +49,77 @@ import okhttp3.Response;
  * 
  * The mapping in the index configuration is used to check JSON documents retrieved from Fedora 
  * before indexing. Properties which do not have a mapping or otherwise cannot be indexed are
- * logged and ignored. On start the index is checked.
+ * logged and ignored. Date, boolean, and number values are coerced to the form the mapping
+ * expects, or dropped if they cannot be. On start the index is checked.
  * 
  * Properties which contain Fedora URIs have a custom matching with causes them to be indexed as
  * Fedora resource paths. This allows a client to search using different URIs which map to the same
  * Fedora resource.
+ * 
+ * Messages are handled asynchronously with a bounded number in flight, so Fedora and Elasticsearch
+ * latency overlaps across messages. Writes may optionally be batched into bulk requests. The result
+ * of each message, including its own bulk item, is reported through the future returned by submit.
+ * 
+ * When Elasticsearch is overloaded or unavailable, the message is handled again after an exponential
+ * backoff with jitter, starting from the Fedora request so the latest state is written. Meanwhile the
+ * limit on messages in flight is lowered and then recovers gradually as writes succeed, so the
+ * caller is slowed down instead of adding to the overload. Other failures are not retried.
+ * 
+ * The ETag and Last-Modified of each resource written are kept in a bounded cache, least recently
+ * used first out, and sent as If-None-Match and If-Modified-Since on the next request for the resource.
+ * If Fedora answers 304 Not Modified, the document is already up to date and nothing is written.
+ * Validators are only recorded once the document has been written.
+ * 
+ * If a {@link DocumentFingerprintStore} is set, the document is normalized before it is sent and not
+ * written if its fingerprint matches that of the indexed document.
  */
-public class ElasticSearchIndexer {
+public class ElasticSearchIndexer implements FedoraMessageHandler, AutoCloseable {
     public static final String FEDORA_ACCEPT_HEADER = "application/ld+json; profile=\"http://www.w3.org/ns/json-ld#compacted\"";
     public static final String FEDORA_PREFER_HEADER = "return=representation; omit=\"http://fedora.info/definitions/v4/repository#ServerManaged\"";
     
+    // Default maximum number of messages being handled at once.
+    public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+
+    // Default number of Fedora resources with cached validators, none so every resource is retrieved.
+    public static final int DEFAULT_VALIDATOR_CACHE_SIZE = 0;
+    
     // Resource path to provided Elasticsearch configuration for PASS.
     private static final String ES_INDEX_CONFIG = "/esindex.json";
     
     private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
     private static final Logger LOG = LoggerFactory.getLogger(ElasticSearchIndexer.class);
 
+    // Start of asynchronous work for a message
+    @FunctionalInterface
+    private interface Action {
+        CompletableFuture<Void> start() throws IOException;
+    }
+
     private final OkHttpClient client;
     private final String fedora_cred;
     private final String es_index_url;
-    private final Set<String> supported_fields;
+    private volatile DocumentNormalizer normalizer;
+    // Mapping properties the normalizer was compiled from guarded by this
+    private JSONObject mapping;
+    private ScheduledExecutorService mapping_timer;
+    private ElasticSearchBulkWriter bulk;
+    private volatile AdaptiveLimiter in_flight;
+    private IndexerMetrics metrics;
+    private int max_retries = 5;
+    private long retry_backoff_ms = 100;
+    private long retry_max_backoff_ms = 10 * 1000;
+    private final ScheduledExecutorService retry_timer;
+
+    private volatile DocumentFingerprintStore fingerprints;
+
+    // ETag and Last-Modified of written Fedora resources by URI guarded by itself
+    private Map<String, String[]> validators;
+
+    // Fingerprints of the fields of written documents by id guarded by itself
+    private Map<String, Map<String, Long>> last_written;
+
+    // Whether writes carry the event time as an external version
+    private boolean versioned = false;
 
     /**
      * If the given Elasticsearch index does not exist, create it using the supplied configuration.
@@ -66,25 +133,36 @@ public class ElasticSearchIndexer {
      */
     public ElasticSearchIndexer(String es_index_url, String es_index_config, String fedora_user, String fedora_pass) throws IOException {
         this.client = new OkHttpClient();
+        this.metrics = new IndexerMetrics();
+        this.retry_timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "es-retry");
+            t.setDaemon(true);
+            return t;
+        });
+        
+        setMaxInFlight(DEFAULT_MAX_IN_FLIGHT);
+        setValidatorCacheSize(DEFAULT_VALIDATOR_CACHE_SIZE);
         this.es_index_url = es_index_url.endsWith("/") ? es_index_url : es_index_url + "/";
         this.fedora_cred = Credentials.basic(fedora_user, fedora_pass);
         
         JSONObject config = get_existing_index_configuration();
 
         if (config == null) {
-            if (es_index_config == null) {
-                es_index_config = ES_INDEX_CONFIG;
-            }
-            
-            LOG.info("Index does not exist. Creating " + es_index_url + " with config " + es_index_config);
+            LOG.info("Index does not exist. Creating " + es_index_url + " with config "
+                    + (es_index_config == null ? ES_INDEX_CONFIG : es_index_config));
             config = load_index_configuration(es_index_config);
             create_index(config);
         } else {
             LOG.info("Found existing index " + es_index_url);
         }
         
-        // Determine the available fields in the index from the configuration and which fields support completion.
-        
+        // Determine the available fields in the index from the configuration.
+        this.mapping = get_mapping_properties(config);
+        this.normalizer = DocumentNormalizer.compile(mapping);
+    }
+
+    // Return the mapping properties of an index configuration.
+    private static JSONObject get_mapping_properties(JSONObject config) {
         // The mappings key is either toplevel or inside an object representing the index.
         if (!config.has("mappings")) {
             Set<String> keys = config.keySet();
@@ -94,8 +172,388 @@ public class ElasticSearchIndexer {
             }
         }
         
-        JSONObject props = config.getJSONObject("mappings").getJSONObject("_doc").getJSONObject("properties");
-        this.supported_fields = new HashSet<>(props.keySet());
+        return config.getJSONObject("mappings").getJSONObject("_doc").getJSONObject("properties");
+    }
+
+    /**
+     * Retrieve the mapping of the index and, if it changed, start normalizing documents against the new
+     * mapping. Documents already being normalized finish with the old one.
+     * 
+     * @return Whether the mapping changed.
+     * @throws IOException if the mapping cannot be retrieved.
+     */
+    public synchronized boolean refreshMapping() throws IOException {
+        JSONObject config = get_existing_index_configuration();
+
+        if (config == null) {
+            throw new IOException("Index not found while refreshing mapping: " + es_index_url);
+        }
+
+        JSONObject props = get_mapping_properties(config);
+
+        if (props.similar(mapping)) {
+            return false;
+        }
+
+        DocumentNormalizer updated = normalizer.recompile(props);
+
+        LOG.info("Mapping of " + es_index_url + " changed, supported fields are now " + new TreeSet<>(
+                updated.getSupportedFields()));
+
+        mapping = props;
+        normalizer = updated;
+
+        return true;
+    }
+
+    /**
+     * @param interval_ms - Time between checks of the index mapping for changes. Disabled if 0.
+     */
+    public synchronized void setMappingRefreshInterval(long interval_ms) {
+        if (mapping_timer != null) {
+            mapping_timer.shutdownNow();
+            mapping_timer = null;
+        }
+
+        if (interval_ms <= 0) {
+            return;
+        }
+
+        mapping_timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "es-mapping-refresh");
+            t.setDaemon(true);
+            return t;
+        });
+
+        mapping_timer.scheduleWithFixedDelay(() -> {
+            try {
+                refreshMapping();
+            } catch (IOException | RuntimeException e) {
+                LOG.error("Failed to refresh mapping of " + es_index_url, e);
+            }
+        }, interval_ms, interval_ms, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return Number of values removed from documents because they did not match the mapping, by property.
+     */
+    public Map<String, Long> getRejectedFieldCounts() {
+        return normalizer.getRejectedCounts();
+    }
+
+    /**
+     * @param metrics - Receives latency and failures of Fedora requests, normalization, and
+     *            Elasticsearch writes, and counts of removed properties.
+     */
+    public void setMetrics(IndexerMetrics metrics) {
+        this.metrics = metrics;
+        normalizer.setMetrics(metrics);
+        metrics.registerThrottle(es_index_url, () -> in_flight.getLimit());
+    }
+
+    /**
+     * Retry messages which failed because Elasticsearch was overloaded or unavailable.
+     * 
+     * @param max_retries - Maximum number of times a message is tried again.
+     * @param backoff_ms - Delay before the first retry. Each retry doubles it.
+     * @param max_backoff_ms - Maximum delay before a retry.
+     */
+    public void setRetry(int max_retries, long backoff_ms, long max_backoff_ms) {
+        this.max_retries = max_retries;
+        this.retry_backoff_ms = backoff_ms;
+        this.retry_max_backoff_ms = max_backoff_ms;
+    }
+
+    /**
+     * Limit the number of messages with a Fedora request or Elasticsearch write in progress.
+     * Requests are executed asynchronously so their latency overlaps. The limit is lowered
+     * while Elasticsearch is overloaded.
+     * 
+     * @param max_in_flight
+     */
+    public void setMaxInFlight(int max_in_flight) {
+        this.in_flight = new AdaptiveLimiter(max_in_flight, 1000);
+        
+        // Each message has at most a Fedora request and an Elasticsearch request outstanding
+        client.dispatcher().setMaxRequests(2 * max_in_flight);
+        client.dispatcher().setMaxRequestsPerHost(2 * max_in_flight);
+    }
+
+    /**
+     * Send only the changed fields of a document with an update action if the fields of the document
+     * last written are known. Elasticsearch still reindexes the whole document, but the request is
+     * smaller and an update which changes nothing is not written at all. A document with removed fields
+     * is written whole.
+     * 
+     * @param size - Number of documents whose field fingerprints are kept. Disabled if 0.
+     */
+    public void setPartialUpdateCacheSize(int size) {
+        this.last_written = size <= 0 ? null : lru_map(size);
+    }
+
+    // Return map which drops the least recently used entry beyond the size. Not thread safe.
+    private static <V> Map<String, V> lru_map(int size) {
+        return new LinkedHashMap<String, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > size;
+            }
+        };
+    }
+
+    private Map<String, Long> get_last_written(String doc_id) {
+        Map<String, Map<String, Long>> cache = last_written;
+
+        if (cache == null) {
+            return null;
+        }
+
+        synchronized (cache) {
+            return cache.get(doc_id);
+        }
+    }
+
+    // Remember field fingerprints of a written document or forget the document if null.
+    private void put_last_written(String doc_id, Map<String, Long> fields) {
+        Map<String, Map<String, Long>> cache = last_written;
+
+        if (cache == null) {
+            return;
+        }
+
+        synchronized (cache) {
+            if (fields == null) {
+                cache.remove(doc_id);
+            } else {
+                cache.put(doc_id, fields);
+            }
+        }
+    }
+
+    private String[] get_validators(String uri) {
+        Map<String, String[]> cache = validators;
+
+        if (cache == null) {
+            return null;
+        }
+
+        synchronized (cache) {
+            return cache.get(uri);
+        }
+    }
+
+    // Remember validators of a written resource or forget the resource if there are none.
+    private void put_validators(String uri, String[] resource_validators) {
+        Map<String, String[]> cache = validators;
+
+        if (cache == null) {
+            return;
+        }
+
+        synchronized (cache) {
+            if (resource_validators == null) {
+                cache.remove(uri);
+            } else {
+                cache.put(uri, resource_validators);
+            }
+        }
+    }
+
+    /**
+     * Skip writes of documents identical to the indexed ones. The store is not closed by the indexer.
+     * 
+     * @param store - Fingerprints of indexed documents or null to always write.
+     */
+    public void setFingerprintStore(DocumentFingerprintStore store) {
+        this.fingerprints = store;
+    }
+
+    /**
+     * Rebuild the fingerprint store from the documents in the index.
+     * 
+     * @return Number of documents.
+     * @throws IOException
+     */
+    public long rebuildFingerprints() throws IOException {
+        DocumentFingerprintStore store = fingerprints;
+
+        if (store == null) {
+            throw new IOException("No fingerprint store");
+        }
+
+        store.clear();
+
+        long count = 0;
+        String scroll_url = es_index_url.replaceFirst("[^/]+/?$", "") + "_search/scroll";
+        String scroll_id = null;
+        Request request = new Request.Builder().url(es_index_url + "_search?scroll=1m&size=1000")
+                .post(RequestBody.create(JSON, "{\"sort\": [\"_doc\"]}")).build();
+
+        try {
+            while (true) {
+                JSONObject result;
+
+                try (Response response = client.newCall(request).execute()) {
+                    String text = response.body().string();
+
+                    if (!response.isSuccessful()) {
+                        throw new ElasticSearchException("Failed to read index: " + response.code() + " " + text,
+                                response.code());
+                    }
+
+                    result = new JSONObject(text);
+                }
+
+                scroll_id = result.optString("_scroll_id", null);
+
+                JSONArray hits = result.getJSONObject("hits").getJSONArray("hits");
+
+                if (hits.length() == 0) {
+                    break;
+                }
+
+                for (int i = 0; i < hits.length(); i++) {
+                    JSONObject hit = hits.getJSONObject(i);
+                    store.put(hit.getString("_id"),
+                            DocumentFingerprintStore.fingerprint(hit.getJSONObject("_source")));
+                    count++;
+                }
+
+                JSONObject next = new JSONObject().put("scroll", "1m").put("scroll_id", scroll_id);
+                request = new Request.Builder().url(scroll_url).post(RequestBody.create(JSON, next.toString()))
+                        .build();
+            }
+        } finally {
+            if (scroll_id != null) {
+                clear_scroll(scroll_url, scroll_id);
+            }
+        }
+
+        LOG.info("Rebuilt fingerprints of " + count + " documents in " + es_index_url);
+
+        return count;
+    }
+
+    // Free the search context of a scroll rather than leave it until it times out.
+    private void clear_scroll(String scroll_url, String scroll_id) {
+        JSONObject body = new JSONObject().put("scroll_id", new JSONArray().put(scroll_id));
+        Request request = new Request.Builder().url(scroll_url).delete(RequestBody.create(JSON, body.toString()))
+                .build();
+
+        try (Response response = client.newCall(request).execute()) {
+            if (!response.isSuccessful()) {
+                LOG.warn("Failed to clear scroll: " + response.code() + " " + response.body().string());
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to clear scroll", e);
+        }
+    }
+
+    /**
+     * Send document updates and deletes to Elasticsearch in bulk requests. A bulk request is sent
+     * when any of the limits are reached. Batching only helps when messages are handled concurrently.
+     * A message keeps its place among the messages in flight until its bulk request completes, so
+     * a bulk request can only fill before max_latency_ms if the in-flight limit is at least max_actions.
+     * 
+     * @param max_actions - Maximum number of actions in a bulk request.
+     * @param max_bytes - Maximum size of a bulk request body.
+     * @param max_latency_ms - Maximum time an action waits before it is sent.
+     */
+    public void enableBulk(int max_actions, long max_bytes, long max_latency_ms) {
+        LOG.info("Using bulk requests with at most " + max_actions + " actions, " + max_bytes + " bytes, and "
+                + max_latency_ms + " ms latency");
+        
+        this.bulk = new ElasticSearchBulkWriter(client, es_index_url, max_actions, max_bytes, max_latency_ms);
+        this.bulk.setExternalVersioning(versioned);
+    }
+
+    /**
+     * Keep the ETag and Last-Modified of written resources to retrieve them conditionally. A resource
+     * which Fedora reports as not modified is not written again, so the cache must not be used if the
+     * index may lose documents by other means, such as being deleted and created again.
+     * 
+     * @param size - Maximum number of Fedora resources whose validators are kept. Disabled if 0.
+     */
+    public void setValidatorCacheSize(int size) {
+        this.validators = size <= 0 ? null : lru_map(size);
+    }
+
+    /**
+     * Send the time of the Fedora event as an external version with each write and delete, so
+     * Elasticsearch rejects a write for an event older than the one already applied. A rejected
+     * write is counted as stale and is not a failure. Messages without a timestamp are written
+     * without a version. A reindex uses the Last-Modified time of each resource.
+     * 
+     * Partial updates are not made since the update API does not accept external versions.
+     * A deleted document only keeps its version for gc_deletes, so it must be longer than a late
+     * message can be delayed by retries or a spool.
+     * 
+     * @param versioned
+     * @param gc_deletes - Time to keep versions of deleted documents such as 1h or null to leave the index setting alone.
+     * @throws IOException if the setting cannot be changed.
+     */
+    public void setExternalVersioning(boolean versioned, String gc_deletes) throws IOException {
+        this.versioned = versioned;
+
+        if (bulk != null) {
+            bulk.setExternalVersioning(versioned);
+        }
+
+        if (!versioned || gc_deletes == null) {
+            return;
+        }
+
+        JSONObject settings = new JSONObject().put("index", new JSONObject().put("gc_deletes", gc_deletes));
+        Request put = new Request.Builder().url(es_index_url + "_settings")
+                .put(RequestBody.create(JSON, settings.toString())).build();
+
+        try (Response response = client.newCall(put).execute()) {
+            String result = response.body().string();
+
+            if (!response.isSuccessful()) {
+                String msg = "Failed to set gc_deletes of index: " + es_index_url + " " + response.code() + " " + result;
+                LOG.error(msg);
+                throw new IOException(msg);
+            }
+        }
+
+        LOG.info("Using external versions with deletes kept for " + gc_deletes + " in index: " + es_index_url);
+    }
+
+    // Add the external version of the message to a document URL which already has a query.
+    private String versioned_url(String doc_url, FedoraMessage m) {
+        if (!versioned || m.getTimestamp() <= 0) {
+            return doc_url;
+        }
+
+        return doc_url + "&version=" + m.getTimestamp() + "&version_type=" + ElasticSearchBulkWriter.VERSION_TYPE;
+    }
+
+    // Treat a version conflict as success since a newer event was already applied.
+    // Validators of the resource are forgotten since they no longer describe the document.
+    private CompletableFuture<Void> ignore_stale(CompletableFuture<Void> result, FedoraMessage m) {
+        if (!versioned) {
+            return result;
+        }
+
+        return result.handle((v, e) -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+
+            if (cause == null) {
+                return null;
+            }
+
+            if (cause instanceof ElasticSearchException && ((ElasticSearchException) cause).getStatus() == 409) {
+                LOG.debug("Newer version already indexed: " + m);
+                put_validators(m.getResourceURI(), null);
+                metrics.countMessage(IndexerMetrics.STALE);
+                return null;
+            }
+
+            throw cause instanceof CompletionException ? (CompletionException) cause : new CompletionException(cause);
+        });
     }
    
     // Create index es_index_url with the given configuration
@@ -116,8 +574,12 @@ public class ElasticSearchIndexer {
         }
     }
     
-    // Return the index configuration specifies as a file or resource. 
-    private JSONObject load_index_configuration(String es_index_config) throws IOException {
+    // Return the index configuration specified as a file or resource. If null, return the provided PASS configuration.
+    static JSONObject load_index_configuration(String es_index_config) throws IOException {
+        if (es_index_config == null) {
+            es_index_config = ES_INDEX_CONFIG;
+        }
+
         Path path = Paths.get(es_index_config);
         
         if (Files.exists(path)) {
@@ -129,7 +591,7 @@ public class ElasticSearchIndexer {
         } else {
             LOG.info("Loading index configuration from classpath: " + es_index_config);
             
-            try (InputStream is = this.getClass().getResourceAsStream(es_index_config)) {
+            try (InputStream is = ElasticSearchIndexer.class.getResourceAsStream(es_index_config)) {
                 if (is == null) {
                     String msg = "Index configuration not found on classpath: " + es_index_config;
                     LOG.error(msg);
@@ -160,121 +622,501 @@ public class ElasticSearchIndexer {
         }
     }
     
-    // Return compact JSON-LD representation of Fedora resource without server triples
-    private String get_fedora_resource(String uri) throws IOException {
-        Request get = new Request.Builder().url(uri).header("Authorization", fedora_cred)
-                .header("Accept", FEDORA_ACCEPT_HEADER).header("Prefer", FEDORA_PREFER_HEADER).build();
+    // Execute a request on the dispatcher. The caller must close the response.
+    private CompletableFuture<Response> execute(Request request) {
+        CompletableFuture<Response> result = new CompletableFuture<>();
 
-        try (Response response = client.newCall(get).execute()) {
-            if (!response.isSuccessful()) {
+        client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                result.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                result.complete(response);
+            }
+        });
+
+        return result;
+    }
+
+    // Execute a request to Elasticsearch. Failure to make the request is retryable.
+    private CompletableFuture<Response> execute_es(Request request) {
+        return execute(request).exceptionally(e -> {
+            throw new CompletionException(new ElasticSearchException("Elasticsearch request failed: " + request.url(), e));
+        });
+    }
+
+    // Return response with compact JSON-LD representation of Fedora resource without server triples.
+    // If validators are given, the response may be 304 Not Modified.
+    // The caller must close the response.
+    private CompletableFuture<Response> get_fedora_resource(FedoraMessage m, String[] cached) {
+        String uri = m.getResourceURI();
+        long start = System.nanoTime();
+
+        Request.Builder get = new Request.Builder().url(uri).header("Authorization", fedora_cred)
+                .header("Accept", FEDORA_ACCEPT_HEADER).header("Prefer", FEDORA_PREFER_HEADER);
+
+        if (cached != null) {
+            // Last-Modified has a resolution of a second, so it is only used without an ETag
+            if (cached[0] != null) {
+                get.header("If-None-Match", cached[0]);
+            } else if (cached[1] != null) {
+                get.header("If-Modified-Since", cached[1]);
+            }
+        }
+
+        return metrics.observeCompletion(IndexerMetrics.FEDORA_GET, m, start, execute(get.build()).thenApply(response -> {
+            if (!response.isSuccessful() && response.code() != 304) {
+                response.close();
+                
                 String msg = "Failed to retrieve Fedora resource: " + uri + " " + response.code();
                 LOG.error(msg);
-                throw new IOException(msg);
+                throw new CompletionException(new FedoraException(msg, response.code()));
             }
 
-            return response.body().string();
-        }
+            return response;
+        }));
     }
     
     // Return URL safe base64 encoding of string.
-    private String base64_encode(String s) {
+    // Needed for benchmarks
+    String base64_encode(String s) {
         return Base64.getUrlEncoder().encodeToString(s.getBytes(StandardCharsets.UTF_8));
     }
 
     // Return URL safe document id.
-    private String get_document_id(String fedora_uri) throws IOException {
+    // Needed for benchmarks
+    String get_document_id(String fedora_uri) throws IOException {
         return base64_encode(new URL(fedora_uri).getPath());
     }
 
-    private String get_create_document_url(String doc_id) throws IOException {
+    private String get_update_document_url(String doc_id) {
+        return es_index_url + "_doc/" + doc_id + "/_update";
+    }
+
+    private String get_create_document_url(String doc_id) {
         return es_index_url + "_doc/" + doc_id + "?pretty";
     }
 
-    // Do any normalization necessary before indexing.
-    // Remove properties not in the index mapping
-    // For each NAME_suggest, add NAME to NAME_suggest.
-    private String normalize_document(String json) {
-        JSONObject o = new JSONObject(json);
+    // Create or update the document corresponding to a Fedora resource in Elasticsearch.
+    // For simplicity the document id is the base64 encoded Fedora URI.
+    private CompletableFuture<Void> update_document(FedoraMessage m) throws IOException {
+        String fedora_uri = m.getResourceURI();
+        
+        LOG.debug("Updating document for Fedora resource: " + fedora_uri);
+
+        String doc_id = get_document_id(fedora_uri);
+
+        return get_fedora_resource(m, get_validators(fedora_uri)).thenCompose(fedora_response -> {
+            if (fedora_response.code() == 304) {
+                fedora_response.close();
+                LOG.debug("Fedora resource not modified: " + fedora_uri);
+                metrics.countMessage(IndexerMetrics.NOT_MODIFIED);
+
+                return CompletableFuture.completedFuture(null);
+            }
+
+            String etag = fedora_response.header("ETag");
+            String last_modified = fedora_response.header("Last-Modified");
+            String[] resource_validators = etag == null && last_modified == null ? null
+                    : new String[] { etag, last_modified };
+
+            return ignore_stale(write_document(doc_id, fedora_response.body(), m)
+                    .thenRun(() -> put_validators(fedora_uri, resource_validators)), m);
+        });
+    }
+
+    // Normalize the Fedora resource into the document.
+    // Needed for benchmarks
+    void normalize_document(ResponseBody fedora_resource, Writer doc) throws IOException {
+        normalizer.normalize(fedora_resource.charStream(), doc);
+    }
+
+    // Write the Fedora resource as a document and close the Fedora resource.
+    // Unless the document must be checked or batched, it is streamed from the Fedora response
+    // into the Elasticsearch request.
+    private CompletableFuture<Void> write_document(String doc_id, ResponseBody fedora_resource, FedoraMessage m) {
+        DocumentFingerprintStore store = fingerprints;
+
+        // The update API does not accept an external version
+        boolean partial = !versioned && last_written != null;
 
-        // TODO For the moment remove inline @context which Elasticsearch cannot handle
-        o.remove("@context");
+        if (bulk == null && store == null && !partial) {
+            return stream_document(doc_id, fedora_resource, m);
+        }
+
+        Buffer doc = new Buffer();
+        long start = System.nanoTime();
         
-        // Ignore and warn about keys not in the configuration or with object values
-        for (Iterator<String> iter = o.keys(); iter.hasNext(); ) {
-            String key = iter.next();
-            Object value = o.get(key);
-            
-            if (!supported_fields.contains(key)) {
-                LOG.warn("Unexpected property ignored: " + key + ", " + value);
-                iter.remove();
+        try (ResponseBody resource = fedora_resource) {
+            normalize_document(resource, new OutputStreamWriter(doc.outputStream(), StandardCharsets.UTF_8));
+            metrics.observe(IndexerMetrics.NORMALIZE, m, start, null);
+        } catch (IOException e) {
+            metrics.observe(IndexerMetrics.NORMALIZE, m, start, e);
+            return Futures.failed(e);
+        }
+
+        JSONObject parsed = store == null && !partial ? null : new JSONObject(doc.snapshot().utf8());
+        long fingerprint = 0;
+
+        if (store != null) {
+            fingerprint = DocumentFingerprintStore.fingerprint(parsed);
+
+            if (store.contains(doc_id, fingerprint)) {
+                LOG.debug("Document unchanged: " + m);
+                metrics.countMessage(IndexerMetrics.UNCHANGED);
+
+                return CompletableFuture.completedFuture(null);
             }
-            
-            if (JSONObject.class.isInstance(value)) {
-                LOG.warn("Property with object value ignored: " + key + ", " + value);
-                iter.remove();
+        }
+
+        Map<String, Long> fields = null;
+        JSONObject changes = null;
+
+        if (partial) {
+            fields = DocumentFingerprintStore.fieldFingerprints(parsed);
+            changes = get_changes(parsed, fields, get_last_written(doc_id));
+
+            if (changes != null && changes.length() == 0) {
+                LOG.debug("Document unchanged: " + m);
+                metrics.countMessage(IndexerMetrics.UNCHANGED);
+
+                return CompletableFuture.completedFuture(null);
             }
         }
-        
-        return o.toString();
+
+        CompletableFuture<Void> written;
+        long write_start = System.nanoTime();
+
+        if (changes == null) {
+            written = write_whole_document(doc_id, doc, m);
+        } else {
+            LOG.debug("Updating fields " + changes.keySet() + " of document: " + m);
+            metrics.countMessage(IndexerMetrics.PARTIAL_UPDATE);
+
+            written = write_partial_document(doc_id, changes, m).handle((v, e) -> {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+
+                if (cause == null) {
+                    return CompletableFuture.<Void>completedFuture(null);
+                } else if (cause instanceof ElasticSearchException && ((ElasticSearchException) cause).getStatus() == 404) {
+                    LOG.debug("Document to update is missing, writing it whole: " + m);
+                    return write_whole_document(doc_id, doc, m);
+                }
+
+                return Futures.<Void>failed(cause);
+            }).thenCompose(f -> f);
+        }
+
+        written = metrics.observeCompletion(IndexerMetrics.ES_WRITE, m, write_start, written);
+
+        if (store != null) {
+            long written_fingerprint = fingerprint;
+            written = written.thenRun(() -> store.put(doc_id, written_fingerprint));
+        }
+
+        if (partial) {
+            Map<String, Long> written_fields = fields;
+            written = written.whenComplete((v, e) -> put_last_written(doc_id, e == null ? written_fields : null));
+        }
+
+        return written;
     }
 
-    // Create or update the document corresponding to a Fedora resource in Elasticsearch.
-    // For simplicity the document id is the base64 encoded Fedora URI.
-    private void update_document(String fedora_uri) throws IOException {
-        LOG.debug("Updating document for Fedora resource: " + fedora_uri);
+    // Return the changed fields of the document or null if it must be written whole.
+    private static JSONObject get_changes(JSONObject doc, Map<String, Long> fields, Map<String, Long> previous) {
+        if (previous == null || !fields.keySet().containsAll(previous.keySet())) {
+            return null;
+        }
 
-        String doc = normalize_document(get_fedora_resource(fedora_uri));
-        String doc_id = get_document_id(fedora_uri);
-        String doc_url = get_create_document_url(doc_id);
+        JSONObject result = new JSONObject();
 
-        RequestBody body = RequestBody.create(JSON, doc);
-        Request post = new Request.Builder().url(doc_url).post(body).build();
+        fields.forEach((name, fingerprint) -> {
+            if (!fingerprint.equals(previous.get(name))) {
+                result.put(name, doc.get(name));
+            }
+        });
+
+        return result;
+    }
+
+    // Create or replace the document. The content of the buffer is consumed.
+    private CompletableFuture<Void> write_whole_document(String doc_id, Buffer doc, FedoraMessage m) {
+        if (bulk != null) {
+            return bulk.index(doc_id, doc, m);
+        }
+
+        return post_document(versioned_url(get_create_document_url(doc_id), m),
+                RequestBody.create(JSON, doc.readByteString()));
+    }
+
+    // Change some fields of an existing document. A missing document fails with status 404.
+    private CompletableFuture<Void> write_partial_document(String doc_id, JSONObject changes, FedoraMessage m) {
+        if (bulk != null) {
+            return bulk.update(doc_id, new Buffer().writeUtf8(changes.toString()), m);
+        }
+
+        return post_document(get_update_document_url(doc_id),
+                RequestBody.create(JSON, new JSONObject().put("doc", changes).toString()));
+    }
+
+    private CompletableFuture<Void> stream_document(String doc_id, ResponseBody fedora_resource, FedoraMessage m) {
+        RequestBody body = new RequestBody() {
+            private final AtomicBoolean written = new AtomicBoolean();
+            
+            @Override
+            public MediaType contentType() {
+                return JSON;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                if (written.getAndSet(true)) {
+                    throw new IOException("Document streamed from Fedora cannot be sent again: " + m);
+                }
+                
+                // Includes time spent sending the document
+                long start = System.nanoTime();
+
+                try {
+                    normalize_document(fedora_resource,
+                            new OutputStreamWriter(sink.outputStream(), StandardCharsets.UTF_8));
+                    metrics.observe(IndexerMetrics.NORMALIZE, m, start, null);
+                } catch (IOException e) {
+                    metrics.observe(IndexerMetrics.NORMALIZE, m, start, e);
+                    throw e;
+                }
+            }
+        };
         
-        try (Response response = client.newCall(post).execute()) {
-            String result = response.body().string();
+        long start = System.nanoTime();
+        CompletableFuture<Void> written = post_document(versioned_url(get_create_document_url(doc_id), m), body)
+                .whenComplete((v, e) -> fedora_resource.close());
 
-            if (response.isSuccessful()) {
-                LOG.debug("Update success: " + response);
-            } else {
-                String msg = "Update failure: " + result; 
-                LOG.error(msg);
-                throw new IOException(msg);
+        return metrics.observeCompletion(IndexerMetrics.ES_WRITE, m, start, written);
+    }
+
+    private CompletableFuture<Void> post_document(String doc_url, RequestBody body) {
+        Request post = new Request.Builder().url(doc_url).post(body).build();
+
+        return execute_es(post).thenAccept(r -> {
+            try (Response response = r) {
+                String result = response.body().string();
+
+                if (response.isSuccessful()) {
+                    LOG.debug("Update success: " + response);
+                } else {
+                    String msg = "Update failure: " + response.code() + " " + result; 
+
+                    if (versioned && response.code() == 409) {
+                        LOG.debug(msg);
+                    } else {
+                        LOG.error(msg);
+                    }
+
+                    throw new CompletionException(new ElasticSearchException(msg, response.code()));
+                }
+            } catch (IOException e) {
+                throw new CompletionException(e);
             }
-        }
+        });
     }
 
-    private void delete_document(String fedora_uri) throws IOException {
+    private CompletableFuture<Void> delete_document(FedoraMessage m) throws IOException {
+        String fedora_uri = m.getResourceURI();
+        
         LOG.debug("Deleting document for Fedora resource: " + fedora_uri);
 
         String doc_id = get_document_id(fedora_uri);
-        String doc_url = get_create_document_url(doc_id);
+        put_validators(fedora_uri, null);
+        put_last_written(doc_id, null);
+
+        DocumentFingerprintStore store = fingerprints;
+
+        if (store != null) {
+            store.remove(doc_id);
+        }
+        
+        long start = System.nanoTime();
+
+        if (bulk != null) {
+            return ignore_stale(metrics.observeCompletion(IndexerMetrics.ES_DELETE, m, start, bulk.delete(doc_id, m)),
+                    m);
+        }
+        
+        String doc_url = versioned_url(get_create_document_url(doc_id), m);
 
         Request delete = new Request.Builder().url(doc_url).delete().build();
         
-        try (Response response = client.newCall(delete).execute()) {
-            String result = response.body().string();
+        CompletableFuture<Void> deleted = execute_es(delete).thenAccept(r -> {
+            try (Response response = r) {
+                String result = response.body().string();
 
-            if (response.isSuccessful()) {
-                LOG.debug("Delete success: " + response);
-            } else {
-                LOG.error("Delete failed: " + result);
+                if (response.isSuccessful()) {
+                    LOG.debug("Delete success: " + response);
+                } else if (ElasticSearchException.isRetryable(response.code())) {
+                    String msg = "Delete failure: " + response.code() + " " + result;
+                    LOG.error(msg);
+                    throw new CompletionException(new ElasticSearchException(msg, response.code()));
+                } else if (versioned && response.code() == 409) {
+                    LOG.debug("Newer version already indexed: " + m);
+                    metrics.countMessage(IndexerMetrics.STALE);
+                } else {
+                    LOG.error("Delete failed: " + result);
+                }
+            } catch (IOException e) {
+                throw new CompletionException(e);
             }
-        }
+        });
+
+        return metrics.observeCompletion(IndexerMetrics.ES_DELETE, m, start, deleted);
     }
 
-    public void handle(FedoraMessage m) throws IOException {
+    /**
+     * Start handling a message. The caller blocks while the maximum number of messages are in flight.
+     * 
+     * @param m
+     * @return Future completed when the document has been updated or deleted.
+     */
+    @Override
+    public CompletableFuture<Void> submit(FedoraMessage m) {
         LOG.debug("Handling Fedora message: " + m);
 
-        switch (m.getAction()) {
-        case CREATED:
-        case MODIFIED:
-            update_document(m.getResourceURI());
-            break;
-        case DELETED:
-            delete_document(m.getResourceURI());
-            break;
-        default:
-            break;
+        long start = System.nanoTime();
+
+        return metrics.observeCompletion(IndexerMetrics.HANDLE, m, start, run_in_flight(m, () -> {
+            switch (m.getAction()) {
+            case CREATED:
+            case MODIFIED:
+                return update_document(m);
+            case DELETED:
+                return delete_document(m);
+            default:
+                return CompletableFuture.completedFuture(null);
+            }
+        }));
+    }
+
+    /**
+     * Create or update the document for a Fedora resource which has already been retrieved.
+     * The caller blocks while the maximum number of messages are in flight.
+     * 
+     * @param fedora_uri
+     * @param resource_json - Compact JSON-LD representation of the resource without server triples.
+     * @return Future completed when the document has been written.
+     */
+    public CompletableFuture<Void> index(String fedora_uri, String resource_json) {
+        return index(fedora_uri, resource_json, 0);
+    }
+
+    /**
+     * Create or update the document for a Fedora resource which has already been retrieved.
+     * The caller blocks while the maximum number of messages are in flight.
+     * 
+     * @param fedora_uri
+     * @param resource_json - Compact JSON-LD representation of the resource without server triples.
+     * @param timestamp - Time in milliseconds the resource was last modified, used as the external
+     *            version, or 0 to write without a version.
+     * @return Future completed when the document has been written.
+     */
+    public CompletableFuture<Void> index(String fedora_uri, String resource_json, long timestamp) {
+        FedoraMessage m = new FedoraMessage();
+        m.setAction(FedoraAction.MODIFIED);
+        m.setResourceURI(fedora_uri);
+        m.setTimestamp(timestamp);
+
+        return run_in_flight(m, () -> write_document(get_document_id(fedora_uri),
+                ResponseBody.create(JSON, resource_json), m));
+    }
+
+    // Start the action once a slot is free and free it when the action and any retries complete.
+    private CompletableFuture<Void> run_in_flight(FedoraMessage m, Action action) {
+        AdaptiveLimiter limiter = in_flight;
+
+        try {
+            limiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Futures.failed(new IOException("Interrupted waiting to handle " + m, e));
+        }
+
+        return run_with_retries(m, action, limiter, 0).whenComplete((v, e) -> limiter.release());
+    }
+
+    // Return delay before a retry: exponential backoff with equal jitter.
+    private long backoff(int attempt) {
+        long cap = Math.min(retry_max_backoff_ms, retry_backoff_ms << Math.min(attempt, 30));
+        return cap / 2 + ThreadLocalRandom.current().nextLong(cap / 2 + 1);
+    }
+
+    private CompletableFuture<Void> run_with_retries(FedoraMessage m, Action action, AdaptiveLimiter limiter,
+            int attempt) {
+        CompletableFuture<Void> result;
+
+        try {
+            result = action.start();
+        } catch (IOException | RuntimeException e) {
+            result = Futures.failed(e);
+        }
+
+        return result.handle((v, e) -> {
+            if (e == null) {
+                limiter.onSuccess();
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+
+            if (!(cause instanceof ElasticSearchException) || !((ElasticSearchException) cause).isRetryable()) {
+                return Futures.<Void>failed(cause);
+            }
+
+            limiter.onOverload();
+
+            if (attempt >= max_retries) {
+                LOG.error("Giving up on " + m + " after " + attempt + " retries");
+                return Futures.<Void>failed(cause);
+            }
+
+            long delay = backoff(attempt);
+
+            LOG.warn("Elasticsearch did not accept " + m + ", retrying in " + delay + " ms: " + cause.getMessage());
+            metrics.countRetry(((ElasticSearchException) cause).getStatus());
+
+            CompletableFuture<Void> retry = new CompletableFuture<>();
+
+            retry_timer.schedule(() -> run_with_retries(m, action, limiter, attempt + 1).whenComplete((v2, e2) -> {
+                if (e2 == null) {
+                    retry.complete(null);
+                } else {
+                    retry.completeExceptionally(e2 instanceof CompletionException && e2.getCause() != null
+                            ? e2.getCause() : e2);
+                }
+            }), delay, TimeUnit.MILLISECONDS);
+
+            return retry;
+        }).thenCompose(f -> f);
+    }
+
+    /**
+     * Send any pending bulk actions.
+     */
+    @Override
+    public void close() {
+        if (bulk != null) {
+            bulk.close();
         }
+
+        synchronized (this) {
+            if (mapping_timer != null) {
+                mapping_timer.shutdownNow();
+            }
+        }
+
+        // Scheduled retries still run
+        retry_timer.shutdown();
+        metrics.unregisterThrottle(es_index_url);
     }
 }
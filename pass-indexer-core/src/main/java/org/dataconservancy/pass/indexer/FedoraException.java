@@ -0,0 +1,53 @@
+/*
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.dataconservancy.pass.indexer;
+
+import java.io.IOException;
+
+/**
+ * Failure to retrieve a Fedora resource. A failure is permanent if the resource cannot be
+ * retrieved however often it is tried, for example because it does not exist or is gone.
+ */
+public class FedoraException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    /**
+     * @param msg
+     * @param status - HTTP status of the response.
+     */
+    public FedoraException(String msg, int status) {
+        super(msg);
+        this.status = status;
+    }
+
+    /**
+     * @return HTTP status of the response.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return Whether the request failed because of the request itself rather than the state of Fedora.
+     */
+    public boolean isPermanent() {
+        return status >= 400 && status < 500 && status != 408 && status != 429;
+    }
+}
@@ -1,9 +1,26 @@
 package org.dataconservancy.pass.indexer;
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.jms.ConnectionFactory;
 import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+import javax.jms.TextMessage;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,11 +29,52 @@ import org.slf4j.LoggerFactory;
 /**
  * Setup a handler that reads Fedora events from a JMS queue and updates an
  * Elasticsearch index in response.
+ * 
+ * If an alias is used, the index URL names an alias managed by {@link ElasticSearchAliasManager}.
+ * While a rebuild of the index is in progress, updates are written to both the current index and
+ * the next one. Once the alias is swapped, updates go to the new index only.
+ * 
+ * If an error queue is set, a message which cannot be handled is copied there with properties
+ * describing the failure instead of being delivered again and again by the broker.
+ * 
+ * If a group queue is set, messages are moved there with a JMS message group keyed by resource so
+ * that several instances can share the load while the events of a resource are handled in order
+ * by one of them.
  */
 public class FedoraIndexerService implements AutoCloseable {
     private static final Logger LOG = LoggerFactory.getLogger(FedoraIndexerService.class);
 
+    // Properties describing the failure of a message sent to the error queue
+    public static final String ERROR_EXCEPTION_PROPERTY = "passIndexerException";
+    public static final String ERROR_MESSAGE_PROPERTY = "passIndexerError";
+    public static final String ERROR_PERMANENT_PROPERTY = "passIndexerPermanent";
+    public static final String ERROR_DELIVERY_COUNT_PROPERTY = "passIndexerDeliveryCount";
+    public static final String ERROR_QUEUE_PROPERTY = "passIndexerQueue";
+
+    // JMS header set by Fedora to a comma separated list of the resource types
+    public static final String FEDORA_RESOURCE_TYPE_HEADER = "org.fcrepo.jms.resourceType";
+
+    // Property marking a message which closes a message group instead of carrying an event
+    public static final String GROUP_CLOSE_PROPERTY = "passIndexerGroupClose";
+    public static final String GROUP_PREFIX = "pass-indexer-";
+
     private JmsClient jms_client;
+    private volatile ElasticSearchIndexer es;
+    private volatile ElasticSearchIndexer next_es;
+    private String next_index;
+    private final List<ElasticSearchIndexer> retired = new ArrayList<>();
+    // Indexers for resource types with an index of their own by type
+    private final Map<String, ElasticSearchIndexer> type_indexers = new LinkedHashMap<>();
+    private ElasticSearchAliasManager aliases;
+    private final IndexerMetrics metrics = new IndexerMetrics();
+    private ScheduledExecutorService alias_timer;
+    private ScheduledExecutorService group_timer;
+    private FedoraMessageHandler handler;
+    private FedoraMessageCoalescer coalescer;
+    private FedoraMessageStriper striper;
+    private FedoraMessageDispatcher dispatcher;
+    private FedoraMessageSpool spool;
+    private DocumentFingerprintStore fingerprints;
     private ConnectionFactory jms_con_fact;
     private String jms_queue;
     private String allowed_type_prefix;
@@ -24,6 +82,40 @@ public class FedoraIndexerService implements AutoCloseable {
     private String fedora_user;
     private String fedora_pass;
     private String elasticsearch_index_config;
+    private int bulk_max_actions = 0;
+    private long bulk_max_bytes = 5 * 1024 * 1024;
+    private long bulk_max_latency_ms = 1000;
+    private int consumers = 1;
+    private long coalesce_window_ms = 0;
+    private int lanes = 0;
+    private boolean virtual_threads = false;
+    private int max_in_flight = ElasticSearchIndexer.DEFAULT_MAX_IN_FLIGHT;
+    private boolean pipelined = false;
+    private String selector_header;
+    private boolean use_alias = false;
+    private long alias_check_interval_ms = 10 * 1000;
+    private String error_queue;
+    private int max_deliveries = 5;
+    private Path spool_dir;
+    private int spool_capacity = 64 * 1024 * 1024;
+    private Path fingerprint_file;
+    private int fingerprint_slots = 4 * 1024 * 1024;
+    private int ack_batch_size = 0;
+    private long ack_batch_latency_ms = 1000;
+    private int validator_cache_size = ElasticSearchIndexer.DEFAULT_VALIDATOR_CACHE_SIZE;
+    private int partial_update_cache_size = 0;
+    private boolean external_versioning = false;
+    private long mapping_refresh_interval_ms = 0;
+    // Index URL and configuration of resource types with an index of their own by type
+    private final Map<String, String[]> type_indexes = new LinkedHashMap<>();
+    private String gc_deletes = "1h";
+    private String group_queue;
+    private int group_buckets = 64;
+    private long group_rebalance_interval_ms = 0;
+    private volatile long last_grouped = 0;
+    private int max_retries = 5;
+    private long retry_backoff_ms = 100;
+    private long retry_max_backoff_ms = 10 * 1000;
     
     public void setJmsConnectionFactory(ConnectionFactory conf_fact) {
         this.jms_con_fact = conf_fact;
@@ -45,6 +137,282 @@ public class FedoraIndexerService implements AutoCloseable {
         this.elasticsearch_index_config = elasticsearch_index_config;
     }
 
+    /**
+     * @param max_actions - Maximum number of actions in an Elasticsearch bulk request. Bulk requests are used if greater than 1.
+     *            Messages in flight are raised to at least twice this on start.
+     */
+    public void setBulkMaxActions(int max_actions) {
+        this.bulk_max_actions = max_actions;
+    }
+
+    public void setBulkMaxBytes(long max_bytes) {
+        this.bulk_max_bytes = max_bytes;
+    }
+
+    public void setBulkMaxLatency(long max_latency_ms) {
+        this.bulk_max_latency_ms = max_latency_ms;
+    }
+
+    /**
+     * @param consumers - Number of JMS consumers handling messages concurrently.
+     */
+    public void setConsumers(int consumers) {
+        this.consumers = consumers;
+    }
+
+    /**
+     * @param window_ms - Time to wait for further messages about the same resource before handling. Disabled if 0.
+     */
+    public void setCoalesceWindow(long window_ms) {
+        this.coalesce_window_ms = window_ms;
+    }
+
+    /**
+     * Handle messages in lanes picked by the hash of the resource URI. Messages about different
+     * resources are handled in parallel and messages about the same resource in order.
+     *
+     * @param lanes - Number of lanes. Disabled if 0.
+     */
+    public void setLanes(int lanes) {
+        this.lanes = lanes;
+    }
+
+    /**
+     * Handle each message on a virtual thread of its own, which waits on the in-flight limit of
+     * each index instead of the thread which received the message. At most max_in_flight messages
+     * are dispatched at once to each index, counting the indexes of routed types separately.
+     * Requires Java 21. Ignored with a warning on an earlier runtime.
+     *
+     * @param virtual_threads
+     */
+    public void setVirtualThreads(boolean virtual_threads) {
+        this.virtual_threads = virtual_threads;
+    }
+
+    /**
+     * @param max_in_flight - Maximum number of messages with Fedora or Elasticsearch requests in progress.
+     */
+    public void setMaxInFlight(int max_in_flight) {
+        this.max_in_flight = max_in_flight;
+    }
+
+    /**
+     * Send messages which cannot be handled to an error queue. A permanent failure, such as a
+     * malformed message, a Fedora resource which does not exist, or a document Elasticsearch
+     * refuses, is sent there at once. A transient failure is left to the broker to deliver again
+     * until the message has been delivered max_deliveries times. When pipelined, a message has
+     * already been acknowledged, so any failure is sent there.
+     * 
+     * The copy has the body and properties of the message and the properties
+     * {@value #ERROR_EXCEPTION_PROPERTY}, {@value #ERROR_MESSAGE_PROPERTY}, {@value #ERROR_PERMANENT_PROPERTY},
+     * {@value #ERROR_DELIVERY_COUNT_PROPERTY}, and {@value #ERROR_QUEUE_PROPERTY}.
+     * 
+     * @param queue - Error queue or null to leave failed messages to the broker.
+     * @param max_deliveries - Number of deliveries after which a transient failure is given up.
+     */
+    public void setErrorQueue(String queue, int max_deliveries) {
+        this.error_queue = queue;
+        this.max_deliveries = max_deliveries;
+    }
+
+    /**
+     * Append messages to a journal on disk, see {@link FedoraMessageSpool}, which is replayed to the
+     * indexer. A message is acknowledged once it is in the journal, so an outage of Elasticsearch does
+     * not hold up consumption until the journal is full. Replayed messages are handled in lanes, one
+     * for each message in flight if no lanes are set, so messages about a resource stay in order.
+     * 
+     * @param dir - Directory of the journal or null to not use one.
+     * @param capacity - Size of the journal in bytes.
+     */
+    public void setSpool(Path dir, int capacity) {
+        this.spool_dir = dir;
+        this.spool_capacity = capacity;
+    }
+
+    /**
+     * Skip writes of documents identical to the indexed ones using fingerprints kept in a file,
+     * see {@link DocumentFingerprintStore}. Only the index the alias points at uses them, so an
+     * index being built gets every document. The store is rebuilt from the index on start and
+     * cleared when the alias is swapped. It cannot be used with a group queue since other
+     * instances write to the index without updating it.
+     * 
+     * @param file - Fingerprint store or null to always write.
+     * @param slots - Number of documents which fit in a new store.
+     */
+    public void setFingerprintStore(Path file, int slots) {
+        this.fingerprint_file = file;
+        this.fingerprint_slots = slots;
+    }
+
+    /**
+     * Acknowledge messages in batches with transacted sessions. A batch is committed once every
+     * message in it has been handled, including the bulk request with its documents, and rolled
+     * back to be delivered again if any failed. This gives at least once indexing and fewer
+     * acknowledgements. Messages in a batch are handled concurrently regardless of pipelining, so
+     * they go through lanes which keep messages about a resource in order, one lane per message in
+     * flight unless lanes are set. A rolled back batch includes messages which were already written.
+     * Those are written again from the current state of the resource.
+     * 
+     * @param batch_size - Maximum number of messages acknowledged at once. Batches are used if greater than 1.
+     * @param latency_ms - Maximum time to wait for a batch to fill.
+     */
+    public void setAckBatch(int batch_size, long latency_ms) {
+        this.ack_batch_size = batch_size;
+        this.ack_batch_latency_ms = latency_ms;
+    }
+
+    /**
+     * @param size - Number of Fedora resources whose ETag and Last-Modified are kept for conditional requests. Disabled if 0.
+     */
+    public void setValidatorCacheSize(int size) {
+        this.validator_cache_size = size;
+    }
+
+    /**
+     * Ignored with a warning when messages are shared through a group queue.
+     *
+     * @param size - Number of documents whose fields are remembered to send only changed fields. Disabled if 0.
+     */
+    public void setPartialUpdateCacheSize(int size) {
+        this.partial_update_cache_size = size;
+    }
+
+    /**
+     * Write documents for resources of a type to an index of their own instead of the Elasticsearch
+     * index. The index is created from its own configuration if it does not exist. It does not take
+     * part in rebuilds through an alias.
+     *
+     * @param type - Resource type without the allowed type prefix such as Grant.
+     * @param index_url - URL of the index.
+     * @param index_config - Either file or resource path to index config. If null, use the configuration of the Elasticsearch index.
+     */
+    public void addTypeIndex(String type, String index_url, String index_config) {
+        type_indexes.put(type, new String[] { index_url, index_config });
+    }
+
+    /**
+     * @param interval_ms - Time between checks of each index mapping for added or changed fields. Disabled if 0.
+     */
+    public void setMappingRefreshInterval(long interval_ms) {
+        this.mapping_refresh_interval_ms = interval_ms;
+    }
+
+    /**
+     * Write documents with the time of the Fedora event, or of the JMS message if the event has none,
+     * as an external version so an older event cannot overwrite a newer one.
+     * 
+     * @param versioned
+     * @param gc_deletes - Time Elasticsearch keeps versions of deleted documents or null to leave the index setting alone.
+     */
+    public void setExternalVersioning(boolean versioned, String gc_deletes) {
+        this.external_versioning = versioned;
+        this.gc_deletes = gc_deletes;
+    }
+
+    /**
+     * Share the queue between instances with JMS message groups. Each instance forwards messages from
+     * the queue to the group queue, setting JMSXGroupID from a hash of the resource URI, and consumes
+     * the group queue. Only one forwarder is active at a time, so order is kept, and the broker
+     * delivers every message of a group to the same consumer. When an instance leaves, the broker
+     * assigns its groups to the others. An instance which joins only gets a share of the groups if
+     * they are closed periodically. A closed group may be assigned to another instance while the
+     * previous one still has messages of the group in progress, so messages about a resource can be
+     * handled out of order and rebalancing requires external versioning.
+     * 
+     * @param queue - Group queue or null to consume the queue directly.
+     * @param buckets - Number of groups resources are hashed into.
+     * @param rebalance_interval_ms - Time between closing every group. Disabled if 0.
+     * @see #setExternalVersioning(boolean, String)
+     */
+    public void setMessageGroups(String queue, int buckets, long rebalance_interval_ms) {
+        this.group_queue = queue;
+        this.group_buckets = buckets;
+        this.group_rebalance_interval_ms = rebalance_interval_ms;
+    }
+
+    /**
+     * Retry messages which failed because Elasticsearch was overloaded or unavailable.
+     * 
+     * @param max_retries - Maximum number of times a message is tried again.
+     * @param backoff_ms - Delay before the first retry. Each retry doubles it.
+     * @param max_backoff_ms - Maximum delay before a retry.
+     */
+    public void setRetry(int max_retries, long backoff_ms, long max_backoff_ms) {
+        this.max_retries = max_retries;
+        this.retry_backoff_ms = backoff_ms;
+        this.retry_max_backoff_ms = max_backoff_ms;
+    }
+
+    /**
+     * If pipelined, the JMS listener does not wait for a message to be handled before receiving the next one.
+     * The message is acknowledged once it is handed off and failures are only logged. Messages which
+     * are acknowledged but not yet handled are lost if the process stops.
+     * 
+     * @param pipelined
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * Have the broker filter messages by resource type. The header must hold the resource types
+     * as Fedora sets them in {@value #FEDORA_RESOURCE_TYPE_HEADER}. Since selectors can only refer
+     * to headers named by Java identifiers, the Fedora header itself cannot be used with ActiveMQ
+     * and must be copied to such a header on the way to the queue.
+     * 
+     * @param header - Header with resource types or null to not use a selector.
+     */
+    public void setJmsSelectorHeader(String header) {
+        this.selector_header = header;
+    }
+
+    /**
+     * @param header - Header holding resource types
+     * @param prefix
+     * @return JMS selector matching messages about a resource with a type starting with the prefix.
+     */
+    static String type_prefix_selector(String header, String prefix) {
+        if (header.isEmpty() || !Character.isJavaIdentifierStart(header.charAt(0))
+                || !header.chars().allMatch(Character::isJavaIdentifierPart)) {
+            throw new IllegalArgumentException("JMS selector header must be a Java identifier: " + header);
+        }
+
+        StringBuilder pattern = new StringBuilder();
+
+        for (char c : prefix.toCharArray()) {
+            if (c == '%' || c == '_' || c == '!') {
+                pattern.append('!');
+            } else if (c == '\'') {
+                pattern.append('\'');
+            }
+
+            pattern.append(c);
+        }
+
+        return header + " LIKE '%" + pattern + "%' ESCAPE '!'";
+    }
+
+    /**
+     * @param use_alias - Whether the index URL names an alias which may be moved to a rebuilt index.
+     */
+    public void setUseAlias(boolean use_alias) {
+        this.use_alias = use_alias;
+    }
+
+    /**
+     * @param interval_ms - Time between checks for an index being rebuilt when using an alias.
+     */
+    public void setAliasCheckInterval(long interval_ms) {
+        this.alias_check_interval_ms = interval_ms;
+    }
+
+    /**
+     * @return Metrics of messages handled by the service.
+     */
+    public IndexerMetrics getMetrics() {
+        return metrics;
+    }
+
     public void setFedoraUser(String fedora_user) {
         this.fedora_user = fedora_user;
     }
@@ -53,47 +421,561 @@ public class FedoraIndexerService implements AutoCloseable {
         this.fedora_pass = fedora_pass;
     }
 
-    private boolean should_handle(FedoraMessage fedora_msg) {
-        for (String type : fedora_msg.getResourceTypes()) {
-            if (type.startsWith(allowed_type_prefix)) {
-                return true;
-            }
+    public void start() throws IOException {
+        if (group_queue != null && group_rebalance_interval_ms > 0 && !external_versioning) {
+            throw new IllegalArgumentException("Rebalancing message groups requires external versioning");
         }
 
-        return false;
-    }
+        if (group_queue != null && fingerprint_file != null) {
+            throw new IllegalArgumentException("Fingerprints cannot be used with a group queue");
+        }
+
+        // Once a group moves, other instances write its documents and the remembered fields go stale
+        if (group_queue != null && partial_update_cache_size > 0) {
+            LOG.warn("Partial updates are disabled with a group queue");
+            partial_update_cache_size = 0;
+        }
+
+        // A message holds its slot until its bulk request completes, so leave room for one bulk
+        // request to fill while another is sent
+        if (bulk_max_actions > 1 && max_in_flight < 2 * bulk_max_actions) {
+            LOG.info("Raising messages in flight from " + max_in_flight + " to " + 2 * bulk_max_actions
+                    + " to fill bulk requests");
+            max_in_flight = 2 * bulk_max_actions;
+        }
+
+        metrics.setTypePrefix(allowed_type_prefix);
+
+        // Check the indexes while connecting to the broker
+        CompletableFuture<Void> indexes = CompletableFuture.runAsync(() -> {
+            try {
+                start_indexes();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, r -> {
+            Thread t = new Thread(r, "es-startup");
+            t.setDaemon(true);
+            t.start();
+        });
 
-    public void start() throws IOException {
         jms_client = new JmsClient(jms_con_fact);
 
-        ElasticSearchIndexer es = new ElasticSearchIndexer(elasticsearch_index_url, elasticsearch_index_config, fedora_user, fedora_pass);
+        try {
+            Futures.await(indexes);
+        } catch (IOException e) {
+            jms_client.close();
+            throw e;
+        }
+
+        if (use_alias) {
+            alias_timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "es-alias-check");
+                t.setDaemon(true);
+                return t;
+            });
+
+            alias_timer.scheduleWithFixedDelay(() -> {
+                try {
+                    check_next_index();
+                } catch (IOException | RuntimeException e) {
+                    LOG.error("Failed to check for next index of alias " + aliases.getAlias(), e);
+                }
+            }, alias_check_interval_ms, alias_check_interval_ms, TimeUnit.MILLISECONDS);
+        }
+
+        handler = this::submit_to_indexes;
+
+        FedoraMessageRouter router = null;
+
+        if (!type_indexers.isEmpty()) {
+            router = new FedoraMessageRouter(allowed_type_prefix, handler);
+            type_indexers.forEach(router::addRoute);
+            handler = router;
+        }
+
+        if (virtual_threads) {
+            ExecutorService executor = FedoraMessageDispatcher.newVirtualThreadExecutor();
+
+            if (executor == null) {
+                LOG.warn("Virtual threads require Java 21, running on " + System.getProperty("java.version"));
+            } else {
+                LOG.info("Handling each message on a virtual thread");
+                dispatcher = router == null ? new FedoraMessageDispatcher(handler, executor, max_in_flight)
+                        : new FedoraMessageDispatcher(router, executor, max_in_flight);
+                handler = dispatcher;
+            }
+        }
+
+        int stripe_lanes = lanes;
+
+        // Messages in a batch or replayed from the spool are handled concurrently and must still be kept in order
+        if (stripe_lanes == 0 && (ack_batch_size > 1 || spool_dir != null)) {
+            stripe_lanes = max_in_flight;
+        }
+
+        if (stripe_lanes > 0) {
+            LOG.info("Handling messages in " + stripe_lanes + " lanes ordered by resource");
+            striper = new FedoraMessageStriper(handler, stripe_lanes);
+
+            for (int i = 0; i < stripe_lanes; i++) {
+                int lane = i;
+                metrics.registerLaneDepth(lane, () -> striper.getQueueDepth(lane));
+            }
+
+            handler = striper;
+        }
+
+        if (coalesce_window_ms > 0) {
+            LOG.info("Coalescing messages about the same resource within " + coalesce_window_ms + " ms");
+            coalescer = new FedoraMessageCoalescer(handler, coalesce_window_ms);
+            coalescer.setMetrics(metrics);
+            handler = coalescer;
+        }
+
+        if (spool_dir != null) {
+            LOG.info("Spooling messages in " + spool_dir);
+            spool = new FedoraMessageSpool(handler, spool_dir, spool_capacity);
+            handler = spool;
+        }
         
-        jms_client.listen(jms_queue, msg -> {
-            try {
-                FedoraMessage fedora_msg = FedoraMessageConverter.convert(msg);
+        String selector = selector_header == null ? null : type_prefix_selector(selector_header, allowed_type_prefix);
+        String consume_queue = jms_queue;
+
+        if (group_queue != null) {
+            jms_client.forward(jms_queue, selector, group_queue, this::group_message);
+
+            if (group_rebalance_interval_ms > 0) {
+                group_timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "jms-group-rebalance");
+                    t.setDaemon(true);
+                    return t;
+                });
+
+                group_timer.scheduleWithFixedDelay(this::close_groups, group_rebalance_interval_ms,
+                        group_rebalance_interval_ms, TimeUnit.MILLISECONDS);
+            }
+
+            LOG.info("Sharing jms queue " + jms_queue + " through " + group_queue + " with " + group_buckets
+                    + " message groups");
+
+            // Messages were selected on the way to the group queue
+            consume_queue = group_queue;
+            selector = null;
+        }
+
+        if (ack_batch_size > 1) {
+            jms_client.listenBatched(consume_queue, selector, consumers, ack_batch_size, ack_batch_latency_ms, msg -> {
+                CompletableFuture<Void> result;
+
+                try {
+                    result = handle_message(msg);
+                } catch (JMSException | RuntimeException e) {
+                    result = Futures.failed(e);
+                }
 
-                boolean should_handle = should_handle(fedora_msg);
+                // A dead lettered message does not cause the batch to be rolled back
+                return result.exceptionally(e -> {
+                    if (dead_letter(msg, e, true)) {
+                        return null;
+                    }
 
-                LOG.debug("Fedora message:" + fedora_msg + "; handle: " + should_handle);
+                    throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+                });
+            });
+        } else {
+            jms_client.listen(consume_queue, selector, consumers, msg -> {
+                try {
+                    CompletableFuture<Void> result = handle_message(msg);
 
-                if (should_handle) {
-                    es.handle(fedora_msg);
+                    // Already acknowledged when pipelined, so a failure cannot be redelivered
+                    if (pipelined) {
+                        result.whenComplete((v, e) -> {
+                            if (e != null) {
+                                dead_letter(msg, e, false);
+                            }
+                        });
+                    } else {
+                        Futures.await(result);
+                    }
+                } catch (IOException | JMSException | RuntimeException e) {
+                    if (!dead_letter(msg, e, true)) {
+                        throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+                    }
                 }
-            } catch (IOException | JMSException e) {
-                throw new RuntimeException(e);
+            });
+        }
+
+        LOG.info("Started listening on jms queue " + consume_queue + " with " + consumers + " consumers");
+        LOG.info("Handling at most " + max_in_flight + " messages at once"
+                + (ack_batch_size > 1 ? " acknowledged in batches" : pipelined ? " in a pipeline" : ""));
+        LOG.info("Elasticsearch index: " + elasticsearch_index_url);
+    }
+
+    // Make sure the indexes exist and create the indexers for them.
+    private void start_indexes() throws IOException {
+        if (use_alias) {
+            aliases = new ElasticSearchAliasManager(elasticsearch_index_url);
+            aliases.ensureAlias(elasticsearch_index_config);
+        }
+
+        es = create_indexer(elasticsearch_index_url);
+
+        if (fingerprint_file != null) {
+            LOG.info("Skipping unchanged documents using fingerprints in " + fingerprint_file);
+            fingerprints = new DocumentFingerprintStore(fingerprint_file, fingerprint_slots);
+            es.setFingerprintStore(fingerprints);
+
+            // The index may have been changed or recreated since the store was last used
+            es.rebuildFingerprints();
+        }
+
+        for (Map.Entry<String, String[]> e : type_indexes.entrySet()) {
+            String[] index = e.getValue();
+
+            LOG.info("Writing resources of type " + e.getKey() + " to index: " + index[0]);
+
+            ElasticSearchIndexer indexer = create_indexer(index[0],
+                    index[1] == null ? elasticsearch_index_config : index[1]);
+
+            if (fingerprints != null) {
+                indexer.setFingerprintStore(fingerprints);
+            }
+
+            type_indexers.put(e.getKey(), indexer);
+        }
+
+        if (use_alias) {
+            check_next_index();
+        }
+    }
+
+    // Return a copy of the message for the group queue in the group of its resource or null if it is filtered.
+    // A malformed message is forwarded without a group to fail where it is consumed.
+    private Message group_message(Session session, Message msg) throws JMSException {
+        FedoraMessage fedora_msg;
+
+        try {
+            fedora_msg = FedoraMessageConverter.convert(msg, allowed_type_prefix);
+        } catch (RuntimeException e) {
+            LOG.warn("Forwarding malformed message without a group: " + e);
+            return copy_message(session, msg);
+        }
+
+        if (fedora_msg == null) {
+            metrics.countMessage(IndexerMetrics.RECEIVED);
+            metrics.countMessage(IndexerMetrics.FILTERED);
+            return null;
+        }
+
+        Message result = copy_message(session, msg);
+        result.setStringProperty("JMSXGroupID", group_of(fedora_msg.getResourceURI(), group_buckets));
+
+        last_grouped = System.currentTimeMillis();
+
+        return result;
+    }
+
+    static String group_of(String uri, int buckets) {
+        return GROUP_PREFIX + FedoraMessageStriper.lane_of(uri, buckets);
+    }
+
+    // Close every group so the broker assigns them again, including to consumers which joined since.
+    // Only the instance which is forwarding does so, after the messages it forwarded.
+    private void close_groups() {
+        if (System.currentTimeMillis() - last_grouped > group_rebalance_interval_ms) {
+            return;
+        }
+
+        try {
+            for (int i = 0; i < group_buckets; i++) {
+                String group = GROUP_PREFIX + i;
+
+                jms_client.write(group_queue, session -> {
+                    Message close = session.createMessage();
+                    close.setStringProperty("JMSXGroupID", group);
+                    close.setIntProperty("JMSXGroupSeq", -1);
+                    close.setBooleanProperty(GROUP_CLOSE_PROPERTY, true);
+                    return close;
+                });
+            }
+
+            LOG.debug("Closed " + group_buckets + " message groups on " + group_queue);
+        } catch (RuntimeException e) {
+            LOG.error("Failed to close message groups on " + group_queue, e);
+        }
+    }
+
+    // Convert the message and submit it if it has an allowed type.
+    // Return a future completed when it is handled or at once if it is filtered.
+    private CompletableFuture<Void> handle_message(Message msg) throws JMSException {
+        if (msg.propertyExists(GROUP_CLOSE_PROPERTY)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        metrics.countMessage(IndexerMetrics.RECEIVED);
+
+        long start = System.nanoTime();
+        FedoraMessage fedora_msg;
+
+        try {
+            // Null if the resource does not have an allowed type
+            fedora_msg = FedoraMessageConverter.convert(msg, allowed_type_prefix);
+        } catch (RuntimeException e) {
+            metrics.observe(IndexerMetrics.CONVERT, null, start, e);
+            metrics.countMessage(IndexerMetrics.FAILED);
+            throw e;
+        }
+
+        metrics.observe(IndexerMetrics.CONVERT, fedora_msg, start, null);
+
+        boolean should_handle = fedora_msg != null;
+
+        LOG.debug("Fedora message:" + fedora_msg + "; handle: " + should_handle);
+
+        if (!should_handle) {
+            metrics.countMessage(IndexerMetrics.FILTERED);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        if (msg.getJMSTimestamp() > 0) {
+            metrics.observeMillis(IndexerMetrics.JMS_RECEIVE, fedora_msg,
+                    System.currentTimeMillis() - msg.getJMSTimestamp());
+
+            if (fedora_msg.getTimestamp() == 0) {
+                fedora_msg.setTimestamp(msg.getJMSTimestamp());
+            }
+        }
+
+        return handler.submit(fedora_msg).whenComplete((v, e) -> {
+            metrics.countMessage(e == null ? IndexerMetrics.HANDLED : IndexerMetrics.FAILED);
+
+            if (e != null && pipelined) {
+                LOG.error("Failed to handle " + fedora_msg, e);
             }
         });
+    }
 
-        LOG.info("Started listening on jms queue " + jms_queue);
-        LOG.info("Elasticsearch index: " + elasticsearch_index_url);
+    // Return whether a failure is caused by the message or resource and would happen again.
+    static boolean is_permanent(Throwable e) {
+        if (e instanceof ElasticSearchException) {
+            return !((ElasticSearchException) e).isRetryable();
+        }
+
+        if (e instanceof FedoraException) {
+            return ((FedoraException) e).isPermanent();
+        }
+
+        // Malformed message
+        return e instanceof RuntimeException;
+    }
+
+    private static int delivery_count(Message msg) throws JMSException {
+        Object count = msg.getObjectProperty("JMSXDeliveryCount");
+
+        if (count instanceof Number) {
+            return ((Number) count).intValue();
+        }
+
+        return msg.getJMSRedelivered() ? 2 : 1;
+    }
+
+    // Send a copy of a failed message to the error queue if it should not be delivered again.
+    // A message which has been acknowledged cannot be redelivered.
+    // Return whether the message was sent.
+    private boolean dead_letter(Message msg, Throwable e, boolean redeliverable) {
+        if (error_queue == null) {
+            return false;
+        }
+
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+
+        try {
+            boolean permanent = is_permanent(cause);
+            int deliveries = delivery_count(msg);
+
+            if (redeliverable && !permanent && deliveries < max_deliveries) {
+                LOG.warn("Failed to handle message on delivery " + deliveries + ", leaving it to be delivered again: "
+                        + cause);
+                return false;
+            }
+
+            StringWriter trace = new StringWriter();
+            cause.printStackTrace(new PrintWriter(trace));
+
+            // Written through the client so the message is not created on a session in use by a listener
+            jms_client.write(error_queue, session -> {
+                Message copy = copy_message(session, msg);
+
+                copy.setStringProperty(ERROR_EXCEPTION_PROPERTY, cause.getClass().getName());
+                copy.setStringProperty(ERROR_MESSAGE_PROPERTY, trace.toString());
+                copy.setBooleanProperty(ERROR_PERMANENT_PROPERTY, permanent);
+                copy.setIntProperty(ERROR_DELIVERY_COUNT_PROPERTY, deliveries);
+                copy.setStringProperty(ERROR_QUEUE_PROPERTY, jms_queue);
+
+                return copy;
+            });
+            metrics.countMessage(IndexerMetrics.DEAD_LETTERED);
+
+            LOG.error("Sent message to error queue " + error_queue + " after " + deliveries + " deliveries ("
+                    + (permanent ? "permanent" : "transient") + " failure): " + cause);
+
+            return true;
+        } catch (JMSException | RuntimeException x) {
+            LOG.error("Failed to send message to error queue " + error_queue, x);
+            return false;
+        }
+    }
+
+    // Copy the body and properties of a message except those set by the broker.
+    private static Message copy_message(Session session, Message msg) throws JMSException {
+        Message copy = msg instanceof TextMessage ? session.createTextMessage(((TextMessage) msg).getText())
+                : session.createMessage();
+
+        for (Enumeration<?> names = msg.getPropertyNames(); names.hasMoreElements();) {
+            String name = names.nextElement().toString();
+
+            if (!name.startsWith("JMSX")) {
+                copy.setObjectProperty(name, msg.getObjectProperty(name));
+            }
+        }
+
+        return copy;
+    }
+
+    private ElasticSearchIndexer create_indexer(String index_url) throws IOException {
+        return create_indexer(index_url, elasticsearch_index_config);
+    }
+
+    private ElasticSearchIndexer create_indexer(String index_url, String index_config) throws IOException {
+        ElasticSearchIndexer result = new ElasticSearchIndexer(index_url, index_config, fedora_user, fedora_pass);
+        result.setMaxInFlight(max_in_flight);
+        result.setMetrics(metrics);
+        result.setRetry(max_retries, retry_backoff_ms, retry_max_backoff_ms);
+        result.setValidatorCacheSize(validator_cache_size);
+        result.setPartialUpdateCacheSize(partial_update_cache_size);
+
+        if (bulk_max_actions > 1) {
+            result.enableBulk(bulk_max_actions, bulk_max_bytes, bulk_max_latency_ms);
+        }
+
+        result.setExternalVersioning(external_versioning, gc_deletes);
+        result.setMappingRefreshInterval(mapping_refresh_interval_ms);
+
+        return result;
+    }
+
+    // Write to the next index as well while one is being built.
+    private CompletableFuture<Void> submit_to_indexes(FedoraMessage m) {
+        ElasticSearchIndexer current = es;
+        ElasticSearchIndexer next = next_es;
+
+        if (next == null) {
+            return current.submit(m);
+        }
+
+        return CompletableFuture.allOf(current.submit(m), next.submit(m));
+    }
+
+    // Start writing to a next index which has appeared. When it is gone, either the alias was
+    // swapped to it and it becomes the current index, or the rebuild was abandoned.
+    // Replaced indexers are only closed with the service since updates may still be using them.
+    private synchronized void check_next_index() throws IOException {
+        String index = aliases.getNextIndex();
+
+        if (index != null && !index.equals(next_index)) {
+            LOG.info("Writing updates to index being built as well: " + index);
+
+            ElasticSearchIndexer next = create_indexer(aliases.getIndexUrl(index));
+
+            if (next_es != null) {
+                retired.add(next_es);
+            }
+
+            next_es = next;
+            next_index = index;
+        } else if (index == null && next_index != null) {
+            if (aliases.getIndexes().contains(next_index)) {
+                LOG.info("Alias " + aliases.getAlias() + " swapped to index " + next_index);
+
+                retired.add(es);
+                es.setFingerprintStore(null);
+
+                // Fingerprints of the old index say nothing about the documents in the new one
+                if (fingerprints != null) {
+                    fingerprints.clear();
+                }
+
+                next_es.setFingerprintStore(fingerprints);
+                es = next_es;
+            } else {
+                LOG.info("Index being built was abandoned: " + next_index);
+
+                retired.add(next_es);
+            }
+
+            next_es = null;
+            next_index = null;
+        }
     }
 
     @Override
     public void close() {
+        if (group_timer != null) {
+            group_timer.shutdownNow();
+        }
+
         if (jms_client != null) {
             LOG.info("Shutting down JMS client");
             jms_client.close();
         }
+        
+        if (spool != null) {
+            try {
+                spool.close();
+            } catch (IOException e) {
+                LOG.error("Failed to close spool", e);
+            }
+        }
+
+        if (coalescer != null) {
+            coalescer.close();
+        }
+
+        if (striper != null) {
+            striper.close();
+        }
+
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+
+        if (alias_timer != null) {
+            alias_timer.shutdownNow();
+        }
+
+        if (es != null) {
+            LOG.info("Shutting down Elasticsearch indexer");
+            es.close();
+        }
+
+        if (next_es != null) {
+            next_es.close();
+        }
+
+        type_indexers.values().forEach(ElasticSearchIndexer::close);
+
+        synchronized (this) {
+            retired.forEach(ElasticSearchIndexer::close);
+        }
+
+        if (fingerprints != null) {
+            try {
+                fingerprints.close();
+            } catch (IOException e) {
+                LOG.error("Failed to close fingerprint store", e);
+            }
+        }
     }
 
     // Needed for testing
@@ -25,6 +25,7 @@ public class FedoraMessage {
     private String res_uri;
     private String[] res_types;
     private FedoraAction action;
+    private long timestamp;
     
     public String getResourceURI() {
         return res_uri;
@@ -50,6 +51,17 @@ public class FedoraMessage {
         this.action = action;
     }
     
+    /**
+     * @return Time of the event in milliseconds since the epoch or 0 if unknown.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -57,6 +69,7 @@ public class FedoraMessage {
         result = prime * result + ((action == null) ? 0 : action.hashCode());
         result = prime * result + Arrays.hashCode(res_types);
         result = prime * result + ((res_uri == null) ? 0 : res_uri.hashCode());
+        result = prime * result + (int) (timestamp ^ (timestamp >>> 32));
         return result;
     }
 
@@ -78,12 +91,15 @@ public class FedoraMessage {
                 return false;
         } else if (!res_uri.equals(other.res_uri))
             return false;
+        if (timestamp != other.timestamp)
+            return false;
         return true;
     }
 
     @Override
     public String toString() {
-        return "FedoraMessage [res=" + res_uri + ", types=" + Arrays.toString(res_types) + ", action=" + action + "]";
+        return "FedoraMessage [res=" + res_uri + ", types=" + Arrays.toString(res_types) + ", action=" + action
+                + ", timestamp=" + timestamp + "]";
     }
 }
 
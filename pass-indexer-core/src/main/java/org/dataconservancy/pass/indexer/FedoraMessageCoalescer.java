@@ -0,0 +1,262 @@
+/*
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.indexer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collapse messages about the same Fedora resource which arrive within a window into
+ * the single action which has the same final effect.
+ *
+ * The first message about a resource opens a window. Messages about that resource which
+ * arrive before the window closes are merged into it. The last action wins, except that a
+ * creation followed by a deletion has no effect at all. When the window closes the effective
+ * message is passed to the next handler. Every merged message shares that result, so a failure
+ * is reported to each of them.
+ *
+ * Effective messages are passed on by a thread of their own in the order their windows closed.
+ * Passing a message on may wait for room in the next handler, which then does not hold up the
+ * closing of other windows.
+ *
+ * Messages can only be merged while they are in flight at the same time, so the coalescer
+ * should be used with several concurrent consumers or with messages that are not waited on.
+ */
+public class FedoraMessageCoalescer implements FedoraMessageHandler, AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(FedoraMessageCoalescer.class);
+
+    private final FedoraMessageHandler handler;
+    private final long window_ms;
+    private final ScheduledExecutorService timer;
+    private final ExecutorService flusher;
+
+    // Open windows by resource URI guarded by itself
+    private final Map<String, Window> windows;
+
+    private final AtomicLong received;
+    private final AtomicLong absorbed;
+    private final AtomicLong cancelled;
+
+    private volatile IndexerMetrics metrics;
+
+    // Messages about a resource merged during a window.
+    private static class Window {
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        // Whether the resource did not exist before the window opened
+        boolean created;
+
+        // Effective message or null if there is nothing to do
+        FedoraMessage effective;
+    }
+
+    /**
+     * @param handler - Handler for effective messages.
+     * @param window_ms - Time in milliseconds to wait for messages about the same resource.
+     */
+    public FedoraMessageCoalescer(FedoraMessageHandler handler, long window_ms) {
+        this.handler = handler;
+        this.window_ms = window_ms;
+        this.windows = new HashMap<>();
+        this.received = new AtomicLong();
+        this.absorbed = new AtomicLong();
+        this.cancelled = new AtomicLong();
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "coalesce-window");
+            t.setDaemon(true);
+            return t;
+        });
+        this.flusher = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "coalesce-flush");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @param metrics - Receives counts of absorbed messages and cancelled windows.
+     */
+    public void setMetrics(IndexerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    private void count(String result) {
+        IndexerMetrics m = metrics;
+
+        if (m != null) {
+            m.countCoalesced(result);
+        }
+    }
+
+    // Return message with the given action and the information from m.
+    private static FedoraMessage with_action(FedoraMessage m, FedoraAction action) {
+        FedoraMessage result = new FedoraMessage();
+
+        result.setResourceURI(m.getResourceURI());
+        result.setResourceTypes(m.getResourceTypes());
+        result.setAction(action);
+        result.setTimestamp(m.getTimestamp());
+
+        return result;
+    }
+
+    // Merge message into the window.
+    private static void merge(Window w, FedoraMessage m) {
+        if (m.getAction() == FedoraAction.DELETED) {
+            // Deleting a resource created in the window has no effect
+            w.effective = w.created ? null : m;
+        } else if (m.getAction() == FedoraAction.MODIFIED && w.effective != null
+                && w.effective.getAction() == FedoraAction.CREATED) {
+            w.effective = with_action(m, FedoraAction.CREATED);
+        } else {
+            w.effective = m;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> submit(FedoraMessage m) {
+        received.incrementAndGet();
+
+        synchronized (windows) {
+            Window w = windows.get(m.getResourceURI());
+
+            if (w == null) {
+                w = new Window();
+                w.created = m.getAction() == FedoraAction.CREATED;
+                w.effective = m;
+                windows.put(m.getResourceURI(), w);
+
+                Window opened = w;
+                timer.schedule(() -> close_window(m.getResourceURI(), opened), window_ms, TimeUnit.MILLISECONDS);
+            } else {
+                LOG.debug("Merged Fedora message into open window: " + m);
+                merge(w, m);
+                absorbed.incrementAndGet();
+                count(IndexerMetrics.ABSORBED);
+            }
+
+            return w.result;
+        }
+    }
+
+    // Close the window and have its effective message passed on to the next handler.
+    private void close_window(String uri, Window w) {
+        FedoraMessage effective;
+
+        synchronized (windows) {
+            windows.remove(uri);
+            effective = w.effective;
+        }
+
+        if (effective == null) {
+            LOG.debug("Fedora messages cancelled each other out: " + uri);
+            cancelled.incrementAndGet();
+            count(IndexerMetrics.CANCELLED);
+            w.result.complete(null);
+            return;
+        }
+
+        try {
+            flusher.execute(new Flush(w, effective));
+        } catch (RuntimeException e) {
+            w.result.completeExceptionally(e);
+        }
+    }
+
+    // Effective message of a closed window waiting to be passed on.
+    private class Flush implements Runnable {
+        final Window window;
+        final FedoraMessage effective;
+
+        Flush(Window window, FedoraMessage effective) {
+            this.window = window;
+            this.effective = effective;
+        }
+
+        @Override
+        public void run() {
+            flush(window, effective);
+        }
+    }
+
+    // Pass the effective message of a window on to the next handler.
+    private void flush(Window w, FedoraMessage effective) {
+        CompletableFuture<Void> result;
+
+        try {
+            result = handler.submit(effective);
+        } catch (RuntimeException e) {
+            result = Futures.failed(e);
+        }
+
+        result.whenComplete((v, e) -> {
+            if (e == null) {
+                w.result.complete(null);
+            } else {
+                w.result.completeExceptionally(e);
+            }
+        });
+    }
+
+    /**
+     * @return Number of messages received.
+     */
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    /**
+     * @return Number of messages merged into a window opened by an earlier message.
+     */
+    public long getAbsorbedCount() {
+        return absorbed.get();
+    }
+
+    /**
+     * @return Number of windows which had no effect because a resource was created and then deleted.
+     */
+    public long getCancelledCount() {
+        return cancelled.get();
+    }
+
+    /**
+     * Messages in open windows or waiting to be passed on are not handled and fail.
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+
+        for (Runnable r : flusher.shutdownNow()) {
+            Flush.class.cast(r).window.result.completeExceptionally(new IOException("Coalescer closed"));
+        }
+
+        synchronized (windows) {
+            windows.values().forEach(w -> w.result.completeExceptionally(new IOException("Coalescer closed")));
+            windows.clear();
+        }
+    }
+}
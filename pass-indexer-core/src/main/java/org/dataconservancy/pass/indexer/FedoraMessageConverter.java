@@ -16,17 +16,27 @@
 
 package org.dataconservancy.pass.indexer;
 
-import java.util.stream.Stream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.TextMessage;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
-// TODO Give good error messages on unexpected json?
+import org.json.JSONException;
 
+/**
+ * Convert the JSON body of a Fedora JMS message into a {@link FedoraMessage}.
+ * 
+ * The message is scanned rather than parsed into a tree. Only the resource id, resource types,
+ * event types, and event time are extracted. If a type prefix is given, conversion stops as soon as the
+ * resource types are known not to match it, so messages which will be ignored cost little.
+ */
 public class FedoraMessageConverter {
     private static final String DELETION = "http://fedora.info/definitions/v4/event#ResourceDeletion";
     private static final String MODIFICATION = "http://fedora.info/definitions/v4/event#ResourceModification";
@@ -36,53 +46,162 @@ public class FedoraMessageConverter {
         return convert(TextMessage.class.cast(m).getText());
     }
 
-    private static boolean contains(String[] array, String s) {
-        return Stream.of(array).anyMatch(s::equals);
+    /**
+     * @param m
+     * @param type_prefix - Prefix one of the resource types must have
+     * @return Message or null if no resource type has the prefix.
+     * @throws JMSException
+     */
+    public static FedoraMessage convert(Message m, String type_prefix) throws JMSException {
+        return convert(TextMessage.class.cast(m).getText(), type_prefix);
     }
 
     public static FedoraMessage convert(String text) {
-        JSONObject root = new JSONObject(text);
-
-        String uri = root.getString("id");
+        return convert(text, null);
+    }
 
-        JSONArray types_array = root.getJSONArray("type");
+    /**
+     * @param text - JSON body of Fedora message
+     * @param type_prefix - Prefix one of the resource types must have or null to accept all types.
+     * @return Message or null if no resource type has the prefix.
+     * @throws JSONException if the message is malformed.
+     */
+    public static FedoraMessage convert(String text, String type_prefix) {
+        try {
+            return scan(new JsonStreamReader(new StringReader(text)), type_prefix);
+        } catch (IOException e) {
+            throw new JSONException("Malformed Fedora message: " + e.getMessage(), e);
+        }
+    }
 
-        String[] types = to_string_array(types_array);
+    private static FedoraMessage scan(JsonStreamReader reader, String type_prefix) throws IOException {
+        String uri = null;
+        String[] types = null;
+        String[] actions = null;
+        long[] time = new long[1];
+
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+            case "id":
+                uri = reader.nextString();
+                break;
+            case "type":
+                types = read_strings(reader);
+
+                if (type_prefix != null && !has_prefix(types, type_prefix)) {
+                    return null;
+                }
+
+                break;
+            case "wasGeneratedBy":
+                actions = read_event(reader, time);
+                break;
+            default:
+                reader.skipValue();
+                break;
+            }
+        }
 
-        JSONObject gen = root.getJSONObject("wasGeneratedBy");
+        if (uri == null || types == null || actions == null) {
+            throw new JSONException("Fedora message missing id, type, or wasGeneratedBy.type");
+        }
 
-        JSONArray actions_array = gen.getJSONArray("type");
+        FedoraMessage result = new FedoraMessage();
 
-        String[] actions = to_string_array(actions_array);
-        FedoraAction action = null;
+        result.setResourceURI(uri);
+        result.setResourceTypes(types);
+        result.setAction(get_action(actions));
+        result.setTimestamp(time[0]);
 
-        // May have MODIFIED with both CREATION and DELETION
-        // Give precedence to CREATION and DELETION
+        return result;
+    }
 
+    // May have MODIFIED with both CREATION and DELETION
+    // Give precedence to CREATION and DELETION
+    private static FedoraAction get_action(String[] actions) {
         if (contains(actions, CREATION)) {
-            action = FedoraAction.CREATED;
+            return FedoraAction.CREATED;
         } else if (contains(actions, DELETION)) {
-            action = FedoraAction.DELETED;
+            return FedoraAction.DELETED;
         } else if (contains(actions, MODIFICATION)) {
-            action = FedoraAction.MODIFIED;
+            return FedoraAction.MODIFIED;
         }
 
-        FedoraMessage result = new FedoraMessage();
+        return null;
+    }
 
-        result.setResourceURI(uri);
-        result.setResourceTypes(types);
-        result.setAction(action);
+    private static boolean contains(String[] array, String s) {
+        for (String el : array) {
+            if (s.equals(el)) {
+                return true;
+            }
+        }
 
-        return result;
+        return false;
     }
 
-    private static String[] to_string_array(JSONArray json) {
-        String[] result = new String[json.length()];
+    private static boolean has_prefix(String[] array, String prefix) {
+        for (String el : array) {
+            if (el.startsWith(prefix)) {
+                return true;
+            }
+        }
 
-        for (int i = 0; i < json.length(); i++) {
-            result[i] = json.getString(i);
+        return false;
+    }
+
+    // Return the type of the wasGeneratedBy object and set the time of the event if present.
+    private static String[] read_event(JsonStreamReader reader, long[] time) throws IOException {
+        String[] result = null;
+
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+            case "type":
+                result = read_strings(reader);
+                break;
+            case "atTime":
+                String value = reader.nextString();
+
+                try {
+                    // Fedora may use an offset rather than Z
+                    time[0] = OffsetDateTime.parse(value, DateTimeFormatter.ISO_OFFSET_DATE_TIME).toInstant()
+                            .toEpochMilli();
+                } catch (DateTimeParseException e) {
+                    throw new JSONException("Fedora message has invalid atTime: " + value, e);
+                }
+
+                break;
+            default:
+                reader.skipValue();
+                break;
+            }
         }
 
+        reader.endObject();
+
         return result;
     }
+
+    // Read a string or array of strings.
+    private static String[] read_strings(JsonStreamReader reader) throws IOException {
+        if (reader.peek() == JsonStreamReader.Token.STRING) {
+            return new String[] { reader.nextString() };
+        }
+
+        List<String> result = new ArrayList<>();
+
+        reader.beginArray();
+
+        while (reader.hasNext()) {
+            result.add(reader.nextString());
+        }
+
+        reader.endArray();
+
+        return result.toArray(new String[result.size()]);
+    }
 }
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.dataconservancy.pass.indexer;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hand each message to a thread of its own which passes it to the next handler and waits for the
+ * result. Waiting on the in-flight limit of an index then ties up that thread instead of the JMS
+ * consumer, lane, or window timer which submitted the message.
+ *
+ * This is meant to be used with the virtual threads of Java 21, which cost little to create and
+ * to block, so each message can have one. The executor is created by reflection so the indexer
+ * still builds and runs on Java 8.
+ *
+ * A semaphore for each downstream handler bounds the messages dispatched to it at once. Given a
+ * {@link FedoraMessageRouter}, each of its targets is a downstream handler, so an index which is slow
+ * does not use up the permits of the others. A message passed to several targets takes a permit of
+ * each, always in the order of the targets. When a permit runs out, submitting a message for that
+ * target blocks.
+ */
+public class FedoraMessageDispatcher implements FedoraMessageHandler, AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(FedoraMessageDispatcher.class);
+
+    private final FedoraMessageHandler handler;
+    private final FedoraMessageRouter router;
+    private final ExecutorService executor;
+    private final int max_dispatched;
+
+    // Permits of each downstream handler
+    private final Map<FedoraMessageHandler, Semaphore> permits;
+
+    /**
+     * @param handler - Handler for messages.
+     * @param executor - Executor which runs each message on its own thread.
+     * @param max_dispatched - Maximum number of messages dispatched and not finished.
+     */
+    public FedoraMessageDispatcher(FedoraMessageHandler handler, ExecutorService executor, int max_dispatched) {
+        this(handler, null, executor, max_dispatched);
+    }
+
+    /**
+     * @param router - Router for messages whose targets each have permits of their own.
+     * @param executor - Executor which runs each message on its own thread.
+     * @param max_dispatched - Maximum number of messages dispatched to a target and not finished.
+     */
+    public FedoraMessageDispatcher(FedoraMessageRouter router, ExecutorService executor, int max_dispatched) {
+        this(router, router, executor, max_dispatched);
+    }
+
+    private FedoraMessageDispatcher(FedoraMessageHandler handler, FedoraMessageRouter router,
+            ExecutorService executor, int max_dispatched) {
+        this.handler = handler;
+        this.router = router;
+        this.executor = executor;
+        this.max_dispatched = max_dispatched;
+        this.permits = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @return Executor creating a virtual thread for each task or null if the runtime does not have them.
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return ExecutorService.class.cast(
+                    Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null));
+        } catch (ReflectiveOperationException e) {
+            LOG.debug("Virtual threads not available", e);
+            return null;
+        }
+    }
+
+    private Semaphore permits(FedoraMessageHandler target) {
+        return permits.computeIfAbsent(target, t -> new Semaphore(max_dispatched));
+    }
+
+    private void release(List<FedoraMessageHandler> targets, int count) {
+        for (int i = 0; i < count; i++) {
+            permits(targets.get(i)).release();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> submit(FedoraMessage m) {
+        List<FedoraMessageHandler> targets = router == null ? Collections.singletonList(handler)
+                : router.getTargets(m);
+
+        for (int i = 0; i < targets.size(); i++) {
+            try {
+                permits(targets.get(i)).acquire();
+            } catch (InterruptedException e) {
+                release(targets, i);
+                Thread.currentThread().interrupt();
+                return Futures.failed(new IOException("Interrupted waiting to dispatch " + m, e));
+            }
+        }
+
+        CompletableFuture<Void> result = new CompletableFuture<>();
+
+        try {
+            executor.execute(() -> {
+                Exception failure = null;
+
+                try {
+                    Futures.await(handler.submit(m));
+                } catch (IOException | RuntimeException e) {
+                    failure = e;
+                } finally {
+                    // Free the permits before the result is seen so the submitter may go on at once
+                    release(targets, targets.size());
+                }
+
+                if (failure == null) {
+                    result.complete(null);
+                } else {
+                    result.completeExceptionally(failure);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            release(targets, targets.size());
+            result.completeExceptionally(new IOException("Dispatcher closed"));
+        }
+
+        return result;
+    }
+
+    /**
+     * @param target - Downstream handler, the handler of the dispatcher if it has no router.
+     * @return Number of messages which may still be dispatched to the target before submitting blocks.
+     */
+    public int getAvailablePermits(FedoraMessageHandler target) {
+        return permits(target).availablePermits();
+    }
+
+    /**
+     * Messages which have been dispatched are given a second to finish.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.indexer;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Stage which acts on a Fedora message.
+ */
+@FunctionalInterface
+public interface FedoraMessageHandler {
+    /**
+     * Start handling a message.
+     * 
+     * @param m
+     * @return Future completed when the message has been handled.
+     */
+    CompletableFuture<Void> submit(FedoraMessage m);
+    
+    /**
+     * Handle a message and wait for the result.
+     * 
+     * @param m
+     * @throws IOException if the message could not be handled.
+     */
+    default void handle(FedoraMessage m) throws IOException {
+        Futures.await(submit(m));
+    }
+}
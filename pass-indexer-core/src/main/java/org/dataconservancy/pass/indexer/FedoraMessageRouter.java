@@ -0,0 +1,112 @@
+/*
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.dataconservancy.pass.indexer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Pass each message to the handler for the type of its resource, so each type of PASS object can be
+ * kept in an index of its own. A type is the part of a resource type after the type prefix, such as
+ * Grant. A resource is handled by the route of its first type which has one and otherwise by the
+ * default handler.
+ *
+ * Since each route is a handler of its own, such as an indexer for one index, every route batches
+ * its own bulk requests and uses the same document id for a resource as any other route would.
+ * A deletion without resource types cannot be routed, so it is passed to every handler.
+ */
+public class FedoraMessageRouter implements FedoraMessageHandler {
+    private final String type_prefix;
+    private final FedoraMessageHandler default_handler;
+    private final Map<String, FedoraMessageHandler> routes;
+
+    /**
+     * @param type_prefix - Prefix removed from resource types to find a route.
+     * @param default_handler - Handler for messages about resources without a routed type.
+     */
+    public FedoraMessageRouter(String type_prefix, FedoraMessageHandler default_handler) {
+        this.type_prefix = type_prefix;
+        this.default_handler = default_handler;
+        this.routes = new LinkedHashMap<>();
+    }
+
+    /**
+     * Must be called before messages are submitted.
+     *
+     * @param type - Resource type without the prefix.
+     * @param handler - Handler for messages about resources of the type.
+     */
+    public void addRoute(String type, FedoraMessageHandler handler) {
+        routes.put(type, handler);
+    }
+
+    /**
+     * @param m
+     * @return Handlers the message is passed to.
+     */
+    public List<FedoraMessageHandler> getTargets(FedoraMessage m) {
+        String[] types = m.getResourceTypes();
+
+        if (types == null || types.length == 0) {
+            if (m.getAction() != FedoraAction.DELETED) {
+                return Collections.singletonList(default_handler);
+            }
+
+            Set<FedoraMessageHandler> result = new LinkedHashSet<>();
+            result.add(default_handler);
+            result.addAll(routes.values());
+
+            return new ArrayList<>(result);
+        }
+
+        for (String type : types) {
+            if (type.startsWith(type_prefix)) {
+                FedoraMessageHandler handler = routes.get(type.substring(type_prefix.length()));
+
+                if (handler != null) {
+                    return Collections.singletonList(handler);
+                }
+            }
+        }
+
+        return Collections.singletonList(default_handler);
+    }
+
+    @Override
+    public CompletableFuture<Void> submit(FedoraMessage m) {
+        List<FedoraMessageHandler> targets = getTargets(m);
+
+        if (targets.size() == 1) {
+            return targets.get(0).submit(m);
+        }
+
+        CompletableFuture<?>[] results = new CompletableFuture<?>[targets.size()];
+
+        for (int i = 0; i < results.length; i++) {
+            results[i] = targets.get(i).submit(m);
+        }
+
+        return CompletableFuture.allOf(results);
+    }
+}
@@ -0,0 +1,501 @@
+/*
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.dataconservancy.pass.indexer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append only journal of messages in a memory mapped file which decouples receiving messages from
+ * handling them. A submitted message is complete once it is appended, so an outage or slowdown of
+ * the next handler is absorbed at the speed of writing memory instead of holding up the consumer.
+ * 
+ * A thread replays the journal in order, passing batches of messages to the next handler. The messages
+ * of a batch are submitted at once, so the next handler must keep messages about the same resource in
+ * order, for example with a {@link FedoraMessageStriper}. Once every message in a batch is handled, or
+ * failed permanently, the read offset is advanced and persisted in a second mapped file. A transient
+ * failure holds the batch, and so the journal, until the message is handled. It is retried together
+ * with the later messages in the batch about the same resource, so they are applied after it again.
+ * On restart the journal is replayed from the persisted offset, so a message is handled at least once.
+ *
+ * When the journal is fully drained it starts again at the beginning of the file. When the file fills
+ * while messages are waiting, the waiting messages are moved to the beginning if they fit in front of
+ * the first of them, so the records at the persisted offset stay intact until the offset is moved to
+ * the copy. Otherwise appending blocks until enough messages are handled.
+ *
+ * Each record is a length followed by the UTF-8 encoded message: the action and timestamp, the
+ * resource URI, and the resource types on separate lines. A record is always followed by a
+ * zero length, and the length of a record is written last, so a record which was partially written
+ * when the process stopped is never read.
+ */
+public class FedoraMessageSpool implements FedoraMessageHandler, AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(FedoraMessageSpool.class);
+
+    private static final String DATA_FILE = "spool.dat";
+    private static final String OFFSET_FILE = "spool.offset";
+
+    private final FedoraMessageHandler handler;
+    private final FileChannel data_channel;
+    private final FileChannel offset_channel;
+    private final MappedByteBuffer data;
+    private final MappedByteBuffer offset;
+    private final int capacity;
+    private final Thread drainer;
+
+    private int batch_size = 100;
+    private long retry_delay_ms = 1000;
+    private boolean sync = false;
+
+    // Guarded by this
+    private int read_pos;
+    private int write_pos;
+    private boolean closed;
+
+    private final AtomicLong handled;
+    private final AtomicLong failed;
+
+    /**
+     * Open the journal in the directory, creating it if needed, and start replaying it.
+     * 
+     * @param handler - Handler for messages read from the journal.
+     * @param dir - Directory holding the journal.
+     * @param capacity - Size in bytes of a new journal file.
+     * @throws IOException
+     */
+    public FedoraMessageSpool(FedoraMessageHandler handler, Path dir, int capacity) throws IOException {
+        this.handler = handler;
+        this.handled = new AtomicLong();
+        this.failed = new AtomicLong();
+
+        Files.createDirectories(dir);
+
+        Path data_file = dir.resolve(DATA_FILE);
+
+        if (Files.exists(data_file)) {
+            capacity = (int) Math.min(Integer.MAX_VALUE, Files.size(data_file));
+        }
+
+        this.capacity = capacity;
+        this.data_channel = FileChannel.open(data_file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.data = data_channel.map(MapMode.READ_WRITE, 0, capacity);
+        this.offset_channel = FileChannel.open(dir.resolve(OFFSET_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.offset = offset_channel.map(MapMode.READ_WRITE, 0, Long.BYTES);
+
+        this.read_pos = (int) offset.getLong(0);
+        this.write_pos = find_end(read_pos);
+
+        if (write_pos > read_pos) {
+            LOG.info("Replaying " + (write_pos - read_pos) + " bytes of messages spooled in " + dir);
+        }
+
+        this.drainer = new Thread(this::drain, "spool-drain");
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+    }
+
+    /**
+     * @param batch_size - Maximum number of messages passed to the next handler at once.
+     */
+    public void setBatchSize(int batch_size) {
+        this.batch_size = batch_size;
+    }
+
+    /**
+     * @param retry_delay_ms - Time to wait before handling a message which failed transiently again.
+     */
+    public void setRetryDelay(long retry_delay_ms) {
+        this.retry_delay_ms = retry_delay_ms;
+    }
+
+    /**
+     * @param sync - Whether to force each appended message to disk so it survives a crash of the machine.
+     */
+    public void setSync(boolean sync) {
+        this.sync = sync;
+    }
+
+    /**
+     * @return Number of bytes of messages waiting to be handled.
+     */
+    public synchronized int getPendingBytes() {
+        return write_pos - read_pos;
+    }
+
+    /**
+     * @return Number of messages read from the journal and handled.
+     */
+    public long getHandledCount() {
+        return handled.get();
+    }
+
+    /**
+     * @return Number of messages read from the journal which failed permanently.
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    // Return offset of the terminator of the records starting at pos.
+    private int find_end(int pos) {
+        while (pos + Integer.BYTES <= capacity) {
+            int len = data.getInt(pos);
+
+            if (len <= 0 || pos + 2 * Integer.BYTES + len > capacity) {
+                break;
+            }
+
+            pos += Integer.BYTES + len;
+        }
+
+        return pos;
+    }
+
+    private static byte[] encode(FedoraMessage m) {
+        StringBuilder result = new StringBuilder();
+
+        result.append(m.getAction());
+
+        if (m.getTimestamp() != 0) {
+            result.append(' ').append(m.getTimestamp());
+        }
+
+        result.append('\n').append(m.getResourceURI());
+
+        if (m.getResourceTypes() != null) {
+            for (String type : m.getResourceTypes()) {
+                result.append('\n').append(type);
+            }
+        }
+
+        return result.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static FedoraMessage decode(byte[] record) {
+        String[] lines = new String(record, StandardCharsets.UTF_8).split("\n", -1);
+        String[] types = new String[lines.length - 2];
+
+        System.arraycopy(lines, 2, types, 0, types.length);
+
+        FedoraMessage result = new FedoraMessage();
+
+        // Action may be followed by the timestamp
+        String[] first = lines[0].split(" ");
+
+        result.setAction(first[0].equals("null") ? null : FedoraAction.valueOf(first[0]));
+        result.setTimestamp(first.length > 1 ? Long.parseLong(first[1]) : 0);
+        result.setResourceURI(lines[1]);
+        result.setResourceTypes(types);
+
+        return result;
+    }
+
+    /**
+     * Append a message to the journal. Blocks while the journal is full.
+     * 
+     * @param m
+     * @throws IOException if the message cannot be appended.
+     */
+    public synchronized void append(FedoraMessage m) throws IOException {
+        byte[] record = encode(m);
+        int needed = 2 * Integer.BYTES + record.length;
+
+        if (needed > capacity) {
+            throw new IOException("Message too large for spool: " + m);
+        }
+
+        boolean warned = false;
+
+        while (write_pos + needed > capacity) {
+            if (closed) {
+                throw new IOException("Spool closed");
+            }
+
+            if (compact()) {
+                continue;
+            }
+
+            if (!warned) {
+                LOG.warn("Spool is full, waiting for messages to be handled");
+                warned = true;
+            }
+
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for space in spool", e);
+            }
+        }
+
+        if (closed) {
+            throw new IOException("Spool closed");
+        }
+
+        ByteBuffer buf = data.duplicate();
+        buf.position(write_pos + Integer.BYTES);
+        buf.put(record);
+
+        data.putInt(write_pos + Integer.BYTES + record.length, 0);
+        data.putInt(write_pos, record.length);
+
+        if (sync) {
+            data.force();
+        }
+
+        write_pos += Integer.BYTES + record.length;
+        notifyAll();
+    }
+
+    /**
+     * Append the message to the journal.
+     * 
+     * @return Future completed once the message is appended.
+     */
+    @Override
+    public CompletableFuture<Void> submit(FedoraMessage m) {
+        try {
+            append(m);
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException e) {
+            return Futures.failed(e);
+        }
+    }
+
+    // Move the records waiting to be handled to the beginning of the file if they fit in front of the
+    // first of them. Return whether they were moved.
+    private boolean compact() {
+        int len = write_pos - read_pos;
+
+        if (read_pos == 0 || len + Integer.BYTES > read_pos) {
+            return false;
+        }
+
+        ByteBuffer src = data.duplicate();
+        src.position(read_pos);
+        src.limit(write_pos);
+
+        ByteBuffer dst = data.duplicate();
+        dst.position(0);
+        dst.put(src);
+
+        data.putInt(len, 0);
+
+        if (sync) {
+            data.force();
+        }
+
+        LOG.debug("Compacted spool by " + read_pos + " bytes");
+
+        read_pos = 0;
+        write_pos = len;
+        offset.putLong(0, read_pos);
+
+        return true;
+    }
+
+    // Wait for messages and return number of bytes of the batch read. The records may be moved by
+    // compaction before the batch is handled.
+    private synchronized int read_batch(List<FedoraMessage> batch) throws InterruptedException {
+        while (!closed && read_pos == write_pos) {
+            wait();
+        }
+
+        int pos = read_pos;
+
+        while (!closed && pos < write_pos && batch.size() < batch_size) {
+            int len = data.getInt(pos);
+            byte[] record = new byte[len];
+            ByteBuffer buf = data.duplicate();
+
+            buf.position(pos + Integer.BYTES);
+            buf.get(record);
+            batch.add(decode(record));
+
+            pos += Integer.BYTES + len;
+        }
+
+        return pos - read_pos;
+    }
+
+    // Record that the given number of bytes of messages are handled and start over if drained.
+    private synchronized void advance(int bytes) {
+        read_pos += bytes;
+
+        if (read_pos == write_pos) {
+            // Terminator first so the old offset never points at a record
+            data.putInt(0, 0);
+            read_pos = 0;
+            write_pos = 0;
+        }
+
+        offset.putLong(0, read_pos);
+        notifyAll();
+    }
+
+    private synchronized boolean is_closed() {
+        return closed;
+    }
+
+    private void drain() {
+        List<FedoraMessage> batch = new ArrayList<>();
+
+        try {
+            while (true) {
+                batch.clear();
+
+                int bytes = read_batch(batch);
+
+                if (batch.isEmpty() || !handle_batch(batch)) {
+                    return;
+                }
+
+                advance(bytes);
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        } catch (RuntimeException e) {
+            LOG.error("Spool stopped unexpectedly", e);
+        }
+    }
+
+    // Handle messages until each succeeds or fails permanently. Return false if closed first.
+    private boolean handle_batch(List<FedoraMessage> batch) throws InterruptedException {
+        List<FedoraMessage> remaining = batch;
+
+        while (true) {
+            List<CompletableFuture<Void>> results = new ArrayList<>();
+
+            for (FedoraMessage m : remaining) {
+                try {
+                    results.add(handler.submit(m));
+                } catch (RuntimeException e) {
+                    results.add(Futures.failed(e));
+                }
+            }
+
+            CompletableFuture<Void> all = CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]));
+
+            while (!all.isDone()) {
+                try {
+                    all.get(1, TimeUnit.SECONDS);
+                } catch (TimeoutException e) {
+                    if (is_closed()) {
+                        return false;
+                    }
+                } catch (ExecutionException e) {
+                    // Examined below
+                }
+            }
+
+            List<FedoraMessage> retry = new ArrayList<>();
+
+            // Resources with a message to retry, whose later messages are retried after it
+            Set<String> held = new HashSet<>();
+
+            for (int i = 0; i < remaining.size(); i++) {
+                FedoraMessage m = remaining.get(i);
+
+                try {
+                    results.get(i).join();
+
+                    if (held.contains(m.getResourceURI())) {
+                        retry.add(m);
+                    } else {
+                        handled.incrementAndGet();
+                    }
+                } catch (CompletionException | CancellationException e) {
+                    Throwable cause = e.getCause() == null ? e : e.getCause();
+
+                    if (FedoraIndexerService.is_permanent(cause)) {
+                        LOG.error("Dropping spooled message which failed permanently: " + m, cause);
+                        failed.incrementAndGet();
+                    } else {
+                        retry.add(m);
+                        held.add(m.getResourceURI());
+                    }
+                }
+            }
+
+            if (retry.isEmpty()) {
+                return true;
+            }
+
+            LOG.warn("Failed to handle " + retry.size() + " spooled messages, retrying in " + retry_delay_ms + " ms");
+
+            synchronized (this) {
+                if (!closed) {
+                    wait(retry_delay_ms);
+                }
+
+                if (closed) {
+                    return false;
+                }
+            }
+
+            remaining = retry;
+        }
+    }
+
+    /**
+     * Stop replaying and close the journal. Messages not yet handled are replayed when it is opened again.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+
+        try {
+            drainer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            data.force();
+            offset.force();
+        }
+
+        data_channel.close();
+        offset_channel.close();
+    }
+}
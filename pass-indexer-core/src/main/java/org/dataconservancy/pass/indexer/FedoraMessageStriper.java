@@ -0,0 +1,207 @@
+/*
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.dataconservancy.pass.indexer;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spread messages over a fixed number of lanes by the hash of the resource URI, so messages about
+ * different resources are handled in parallel while messages about the same resource are handled
+ * in the order they were submitted.
+ *
+ * Each lane has a thread which takes messages from its queue in order and passes them to the next
+ * handler. Before a message is passed on, the lane waits for the previous message about the same
+ * resource to finish, failed or not. Messages about other resources in the lane are not waited on,
+ * so a slow response for one resource only holds up its lane when the same resource is waiting.
+ */
+public class FedoraMessageStriper implements FedoraMessageHandler, AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(FedoraMessageStriper.class);
+
+    private final FedoraMessageHandler handler;
+    private final Lane[] lanes;
+
+    // Messages assigned to one thread.
+    private static class Lane {
+        final ExecutorService executor;
+
+        // Messages not yet passed on, including one waiting for its resource
+        final AtomicInteger depth = new AtomicInteger();
+
+        // Last message passed on by resource URI until it finishes
+        final Map<String, CompletableFuture<Void>> in_progress = new ConcurrentHashMap<>();
+
+        Lane(int index) {
+            this.executor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "stripe-lane-" + index);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    // Message waiting in a lane.
+    private abstract static class Task implements Runnable {
+        final CompletableFuture<Void> result;
+
+        Task(CompletableFuture<Void> result) {
+            this.result = result;
+        }
+    }
+
+    /**
+     * @param handler - Handler for messages.
+     * @param lanes - Number of lanes.
+     */
+    public FedoraMessageStriper(FedoraMessageHandler handler, int lanes) {
+        if (lanes < 1) {
+            throw new IllegalArgumentException("Number of lanes must be at least 1: " + lanes);
+        }
+
+        this.handler = handler;
+        this.lanes = new Lane[lanes];
+
+        for (int i = 0; i < lanes; i++) {
+            this.lanes[i] = new Lane(i);
+        }
+    }
+
+    /**
+     * @param uri - Resource URI.
+     * @param lanes - Number of lanes.
+     * @return Lane of the resource.
+     */
+    static int lane_of(String uri, int lanes) {
+        int h = uri.hashCode();
+
+        // Spread high bits since URIs often differ only at the end
+        h ^= h >>> 16;
+
+        return (h & 0x7fffffff) % lanes;
+    }
+
+    @Override
+    public CompletableFuture<Void> submit(FedoraMessage m) {
+        Lane lane = lanes[lane_of(m.getResourceURI(), lanes.length)];
+        CompletableFuture<Void> result = new CompletableFuture<>();
+
+        lane.depth.incrementAndGet();
+
+        try {
+            lane.executor.execute(new Task(result) {
+                @Override
+                public void run() {
+                    pass_on(lane, m, result);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            lane.depth.decrementAndGet();
+            result.completeExceptionally(new IOException("Striper closed"));
+        }
+
+        return result;
+    }
+
+    // Wait for the previous message about the resource and pass the message to the next handler.
+    private void pass_on(Lane lane, FedoraMessage m, CompletableFuture<Void> result) {
+        String uri = m.getResourceURI();
+        CompletableFuture<Void> previous = lane.in_progress.get(uri);
+
+        if (previous != null && !previous.isDone()) {
+            LOG.debug("Waiting for previous message about resource: " + uri);
+
+            try {
+                previous.join();
+            } catch (CompletionException | CancellationException e) {
+                // Reported to the submitter of the previous message
+            }
+        }
+
+        CompletableFuture<Void> handled;
+
+        try {
+            handled = handler.submit(m);
+        } catch (RuntimeException e) {
+            handled = Futures.failed(e);
+        }
+
+        CompletableFuture<Void> current = handled;
+        lane.in_progress.put(uri, current);
+        lane.depth.decrementAndGet();
+
+        current.whenComplete((v, e) -> {
+            lane.in_progress.remove(uri, current);
+
+            if (e == null) {
+                result.complete(null);
+            } else {
+                result.completeExceptionally(e instanceof CompletionException && e.getCause() != null
+                        ? e.getCause() : e);
+            }
+        });
+    }
+
+    /**
+     * @return Number of lanes.
+     */
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * @param lane
+     * @return Number of messages waiting in the lane.
+     */
+    public int getQueueDepth(int lane) {
+        return lanes[lane].depth.get();
+    }
+
+    /**
+     * Messages waiting in a lane are not handled and fail.
+     */
+    @Override
+    public void close() {
+        for (Lane lane : lanes) {
+            for (Runnable r : lane.executor.shutdownNow()) {
+                lane.depth.decrementAndGet();
+                Task.class.cast(r).result.completeExceptionally(new IOException("Striper closed"));
+            }
+        }
+
+        for (Lane lane : lanes) {
+            try {
+                lane.executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,446 @@
+/*
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.indexer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import okhttp3.Credentials;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Rebuild the index by walking the Fedora container tree from a root resource through ldp:contains.
+ * Resources are retrieved by a pool of threads and every resource with a type matching the prefix
+ * is written to the index. Containers without a matching type are walked but not indexed.
+ *
+ * If a checkpoint file is set, each resource is recorded there when it is discovered and again
+ * when it is finished. A later run with the same file continues with the resources which were
+ * discovered but not finished and does not visit finished resources again. A resource which could
+ * not be retrieved or indexed is left unfinished so a later run retries it.
+ *
+ * With external versioning, a document is written with the Last-Modified time of its resource as
+ * the version. It has a resolution of a second and is truncated, so a document written for a later
+ * event is never overwritten, though a document for an event earlier in the same second may be left
+ * for that event's message to update.
+ *
+ * Progress and rate are logged periodically.
+ */
+public class FedoraReindexer {
+    private static final Logger LOG = LoggerFactory.getLogger(FedoraReindexer.class);
+
+    private static final String FEDORA_PREFER_HEADER = "return=representation; "
+            + "include=\"http://www.w3.org/ns/ldp#PreferContainment\"; "
+            + "omit=\"http://fedora.info/definitions/v4/repository#ServerManaged\"";
+
+    // Ways ldp:contains may appear in compact JSON-LD
+    private static final Set<String> CONTAINS_KEYS = new HashSet<>(
+            Arrays.asList("contains", "ldp:contains", "http://www.w3.org/ns/ldp#contains"));
+
+    private static final String DISCOVERED = "+ ";
+    private static final String FINISHED = "- ";
+
+    private final ElasticSearchIndexer indexer;
+    private final OkHttpClient client;
+    private final String fedora_cred;
+    private final String allowed_type_prefix;
+
+    private int parallelism = 8;
+    private Path checkpoint;
+    private long progress_interval_ms = 10 * 1000;
+
+    private ExecutorService executor;
+    private BufferedWriter checkpoint_log;
+
+    // Resources recorded in the checkpoint by a previous run
+    private Set<String> recorded;
+
+    // Resources which are queued, being retrieved, or being indexed
+    private final AtomicLong pending;
+    private final AtomicLong visited;
+    private final AtomicLong indexed;
+    private final AtomicLong failed;
+
+    /**
+     * @param indexer - Indexer which writes documents.
+     * @param fedora_user
+     * @param fedora_pass
+     * @param allowed_type_prefix - Prefix a type of the resource must have to be indexed.
+     */
+    public FedoraReindexer(ElasticSearchIndexer indexer, String fedora_user, String fedora_pass,
+            String allowed_type_prefix) {
+        this.indexer = indexer;
+        this.client = new OkHttpClient();
+        this.fedora_cred = Credentials.basic(fedora_user, fedora_pass);
+        this.allowed_type_prefix = allowed_type_prefix;
+        this.pending = new AtomicLong();
+        this.visited = new AtomicLong();
+        this.indexed = new AtomicLong();
+        this.failed = new AtomicLong();
+        this.recorded = Collections.emptySet();
+    }
+
+    /**
+     * @param parallelism - Number of Fedora resources retrieved at once.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @param checkpoint - File recording progress or null to not record progress.
+     */
+    public void setCheckpoint(Path checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * @param progress_interval_ms - Time between progress reports.
+     */
+    public void setProgressInterval(long progress_interval_ms) {
+        this.progress_interval_ms = progress_interval_ms;
+    }
+
+    /**
+     * @return Number of resources retrieved.
+     */
+    public long getVisitedCount() {
+        return visited.get();
+    }
+
+    /**
+     * @return Number of documents written.
+     */
+    public long getIndexedCount() {
+        return indexed.get();
+    }
+
+    /**
+     * @return Number of resources which could not be retrieved or indexed.
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Walk the tree and index resources. Returns when every discovered resource has been handled.
+     *
+     * @param root_uri - Fedora container to start from. Ignored if a checkpoint has unfinished resources.
+     * @throws IOException if the checkpoint cannot be read or written.
+     */
+    public void reindex(String root_uri) throws IOException {
+        List<String> start = new ArrayList<>();
+
+        if (checkpoint != null && Files.exists(checkpoint)) {
+            start.addAll(load_checkpoint());
+            LOG.info("Resuming reindex from " + checkpoint + " with " + start.size() + " unfinished resources and "
+                    + (recorded.size() - start.size()) + " finished");
+        }
+
+        if (recorded.isEmpty()) {
+            start.add(root_uri);
+        }
+
+        if (checkpoint != null) {
+            checkpoint_log = Files.newBufferedWriter(checkpoint, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+        }
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "reindex-progress");
+            t.setDaemon(true);
+            return t;
+        });
+
+        long start_time = System.currentTimeMillis();
+        AtomicLong last_indexed = new AtomicLong();
+
+        reporter.scheduleAtFixedRate(() -> report(start_time, last_indexed), progress_interval_ms,
+                progress_interval_ms, TimeUnit.MILLISECONDS);
+
+        executor = Executors.newFixedThreadPool(parallelism);
+
+        try {
+            for (String uri : start) {
+                if (!recorded.contains(uri)) {
+                    record(DISCOVERED, uri);
+                }
+
+                visit(uri);
+            }
+
+            synchronized (pending) {
+                while (pending.get() > 0) {
+                    pending.wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Reindex interrupted", e);
+        } finally {
+            executor.shutdownNow();
+            reporter.shutdownNow();
+
+            if (checkpoint_log != null) {
+                synchronized (checkpoint_log) {
+                    checkpoint_log.close();
+                }
+            }
+        }
+
+        report(start_time, last_indexed);
+        LOG.info("Reindex finished");
+    }
+
+    // Return discovered but unfinished resources and remember every recorded resource.
+    private List<String> load_checkpoint() throws IOException {
+        Set<String> unfinished = new LinkedHashSet<>();
+        Set<String> seen = new HashSet<>();
+
+        try (BufferedReader in = Files.newBufferedReader(checkpoint, StandardCharsets.UTF_8)) {
+            String line;
+
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(DISCOVERED)) {
+                    String uri = line.substring(DISCOVERED.length());
+
+                    if (seen.add(uri)) {
+                        unfinished.add(uri);
+                    }
+                } else if (line.startsWith(FINISHED)) {
+                    String uri = line.substring(FINISHED.length());
+
+                    seen.add(uri);
+                    unfinished.remove(uri);
+                }
+            }
+        }
+
+        recorded = seen;
+
+        return new ArrayList<>(unfinished);
+    }
+
+    private void record(String marker, String uri) throws IOException {
+        if (checkpoint_log != null) {
+            synchronized (checkpoint_log) {
+                checkpoint_log.write(marker);
+                checkpoint_log.write(uri);
+                checkpoint_log.newLine();
+                checkpoint_log.flush();
+            }
+        }
+    }
+
+    private void report(long start_time, AtomicLong last_indexed) {
+        long elapsed = Math.max(1, System.currentTimeMillis() - start_time);
+        long count = indexed.get();
+        long recent = count - last_indexed.getAndSet(count);
+
+        LOG.info("Reindex progress: visited " + visited.get() + ", indexed " + count + ", failed " + failed.get()
+                + ", pending " + pending.get() + ", " + (count * 1000 / elapsed) + " docs/s overall, "
+                + (recent * 1000 / progress_interval_ms) + " docs/s recently");
+    }
+
+    private void visit(String uri) {
+        pending.incrementAndGet();
+
+        try {
+            executor.execute(() -> {
+                try {
+                    handle(uri);
+                } catch (IOException | RuntimeException e) {
+                    LOG.error("Failed to reindex " + uri, e);
+                    failed.incrementAndGet();
+                    finish(uri, false);
+                }
+            });
+        } catch (RuntimeException e) {
+            pending.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private void finish(String uri, boolean success) {
+        if (success) {
+            try {
+                record(FINISHED, uri);
+            } catch (IOException e) {
+                LOG.error("Failed to record finished resource in checkpoint: " + uri, e);
+            }
+        }
+
+        synchronized (pending) {
+            if (pending.decrementAndGet() == 0) {
+                pending.notifyAll();
+            }
+        }
+    }
+
+    // Retrieve the resource, queue its children, and index it if it has an allowed type.
+    private void handle(String uri) throws IOException {
+        Request get = new Request.Builder().url(uri).header("Authorization", fedora_cred)
+                .header("Accept", ElasticSearchIndexer.FEDORA_ACCEPT_HEADER).header("Prefer", FEDORA_PREFER_HEADER)
+                .build();
+
+        String json;
+        long last_modified;
+
+        try (Response response = client.newCall(get).execute()) {
+            if (!response.isSuccessful()) {
+                throw new IOException("Failed to retrieve Fedora resource: " + uri + " " + response.code());
+            }
+
+            json = response.body().string();
+            last_modified = parse_last_modified(uri, response.header("Last-Modified"));
+        }
+
+        visited.incrementAndGet();
+
+        List<String> types = new ArrayList<>();
+        List<String> children = new ArrayList<>();
+
+        scan(json, types, children);
+
+        for (String child : children) {
+            if (!recorded.contains(child)) {
+                record(DISCOVERED, child);
+                visit(child);
+            }
+        }
+
+        if (!has_prefix(types, allowed_type_prefix)) {
+            finish(uri, true);
+            return;
+        }
+
+        indexer.index(uri, json, last_modified).whenComplete((v, e) -> {
+            if (e == null) {
+                indexed.incrementAndGet();
+            } else {
+                LOG.error("Failed to index " + uri, e);
+                failed.incrementAndGet();
+            }
+
+            finish(uri, e == null);
+        });
+    }
+
+    // Return the Last-Modified time in milliseconds or 0 if it is missing or malformed.
+    private static long parse_last_modified(String uri, String value) {
+        if (value == null) {
+            return 0;
+        }
+
+        try {
+            return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            LOG.warn("Ignoring malformed Last-Modified of " + uri + ": " + value);
+            return 0;
+        }
+    }
+
+    private static boolean has_prefix(List<String> types, String prefix) {
+        for (String type : types) {
+            if (type.startsWith(prefix)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // Collect the types and contained resources of a compact JSON-LD object.
+    static void scan(String json, List<String> types, List<String> children) throws IOException {
+        JsonStreamReader reader = new JsonStreamReader(new StringReader(json));
+
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+
+            if (key.equals("@type")) {
+                read_ids(reader, types);
+            } else if (CONTAINS_KEYS.contains(key)) {
+                read_ids(reader, children);
+            } else {
+                reader.skipValue();
+            }
+        }
+
+        reader.endObject();
+    }
+
+    // Read a string, node reference, or array of those.
+    private static void read_ids(JsonStreamReader reader, List<String> result) throws IOException {
+        switch (reader.peek()) {
+        case STRING:
+            result.add(reader.nextString());
+            break;
+        case BEGIN_OBJECT:
+            reader.beginObject();
+
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("@id")) {
+                    result.add(reader.nextString());
+                } else {
+                    reader.skipValue();
+                }
+            }
+
+            reader.endObject();
+            break;
+        case BEGIN_ARRAY:
+            reader.beginArray();
+
+            while (reader.hasNext()) {
+                read_ids(reader, result);
+            }
+
+            reader.endArray();
+            break;
+        default:
+            reader.skipValue();
+            break;
+        }
+    }
+}
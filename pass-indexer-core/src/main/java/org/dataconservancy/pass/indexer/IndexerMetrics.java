@@ -0,0 +1,333 @@
+/*
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.indexer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntSupplier;
+
+/**
+ * Counters and latency histograms for each stage of handling a message. Latency and failures are
+ * broken down by stage, action, and resource type. The resource type is the first type of the
+ * message with the configured prefix, with the prefix removed, so the number of series stays small.
+ *
+ * Metrics are written in the Prometheus text exposition format.
+ */
+public class IndexerMetrics {
+    // Time from a message being sent by Fedora until it is received
+    public static final String JMS_RECEIVE = "jms_receive";
+    public static final String CONVERT = "convert";
+    public static final String FEDORA_GET = "fedora_get";
+    public static final String NORMALIZE = "normalize";
+    public static final String ES_WRITE = "es_write";
+    public static final String ES_DELETE = "es_delete";
+    // Whole time from submission of a message until it is handled
+    public static final String HANDLE = "handle";
+
+    // Outcomes of received messages
+    public static final String RECEIVED = "received";
+    public static final String FILTERED = "filtered";
+    public static final String HANDLED = "handled";
+    public static final String FAILED = "failed";
+    public static final String DEAD_LETTERED = "dead_lettered";
+    // Fedora resource unchanged since it was last written
+    public static final String NOT_MODIFIED = "not_modified";
+    // Normalized document identical to the indexed one
+    public static final String UNCHANGED = "unchanged";
+    // Only changed fields of the document sent
+    public static final String PARTIAL_UPDATE = "partial_update";
+    // Write or delete rejected because a newer event was already applied
+    public static final String STALE = "stale";
+
+    // What happened to a message in a coalescing window
+    public static final String ABSORBED = "absorbed";
+    public static final String CANCELLED = "cancelled";
+
+    // Reasons a property is removed from a document
+    public static final String UNMAPPED = "unmapped";
+    public static final String INVALID = "invalid";
+    public static final String OBJECT = "object";
+
+    // Upper bounds of latency buckets in seconds
+    private static final double[] BUCKETS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5,
+            10 };
+
+    private static final String UNKNOWN_TYPE = "unknown";
+    private static final String OTHER_TYPE = "other";
+
+    // Counts of a histogram, one for each bucket and then one for larger values
+    private static class Histogram {
+        final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+        final AtomicLong sum_nanos = new AtomicLong();
+
+        void observe(long nanos) {
+            double seconds = nanos / 1e9;
+            int i = 0;
+
+            while (i < BUCKETS.length && seconds > BUCKETS[i]) {
+                i++;
+            }
+
+            counts.incrementAndGet(i);
+            sum_nanos.addAndGet(nanos);
+        }
+    }
+
+    private volatile String type_prefix;
+
+    // Series are keyed by their formatted labels
+    private final Map<String, Histogram> latencies;
+    private final Map<String, AtomicLong> failures;
+    private final Map<String, AtomicLong> messages;
+    private final Map<String, AtomicLong> dropped_fields;
+    private final Map<String, AtomicLong> retries;
+    private final Map<String, AtomicLong> coalesced;
+    private final Map<String, IntSupplier> throttle_limits;
+    private final Map<String, IntSupplier> lane_depths;
+
+    public IndexerMetrics() {
+        this.latencies = new ConcurrentHashMap<>();
+        this.failures = new ConcurrentHashMap<>();
+        this.messages = new ConcurrentHashMap<>();
+        this.dropped_fields = new ConcurrentHashMap<>();
+        this.retries = new ConcurrentHashMap<>();
+        this.coalesced = new ConcurrentHashMap<>();
+        this.throttle_limits = new ConcurrentHashMap<>();
+        this.lane_depths = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @param type_prefix - Prefix of the resource type used to label a message.
+     */
+    public void setTypePrefix(String type_prefix) {
+        this.type_prefix = type_prefix;
+    }
+
+    // Return the label for the type of the resource in the message.
+    private String type_label(FedoraMessage m) {
+        String prefix = type_prefix;
+
+        if (m == null || m.getResourceTypes() == null || prefix == null) {
+            return UNKNOWN_TYPE;
+        }
+
+        for (String type : m.getResourceTypes()) {
+            if (type.startsWith(prefix)) {
+                return type.substring(prefix.length());
+            }
+        }
+
+        return OTHER_TYPE;
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    // Format label names and values as name="value",...
+    private static String labels(String... names_and_values) {
+        StringBuilder result = new StringBuilder();
+
+        for (int i = 0; i < names_and_values.length; i += 2) {
+            if (i > 0) {
+                result.append(',');
+            }
+
+            result.append(names_and_values[i]).append("=\"").append(escape(names_and_values[i + 1])).append('"');
+        }
+
+        return result.toString();
+    }
+
+    private String stage_labels(String stage, FedoraMessage m) {
+        String action = m == null || m.getAction() == null ? "unknown" : m.getAction().name().toLowerCase();
+
+        return labels("stage", stage, "action", action, "type", type_label(m));
+    }
+
+    /**
+     * Record the latency of a stage and whether it failed.
+     *
+     * @param stage
+     * @param m - Message being handled or null if not known.
+     * @param start_nanos - Value of {@link System#nanoTime()} when the stage started.
+     * @param failure - Cause of failure or null if the stage succeeded.
+     */
+    public void observe(String stage, FedoraMessage m, long start_nanos, Throwable failure) {
+        observe_nanos(stage, m, System.nanoTime() - start_nanos, failure);
+    }
+
+    /**
+     * Record the latency of a stage and whether it failed when its result completes.
+     *
+     * @param stage
+     * @param m - Message being handled or null if not known.
+     * @param start_nanos - Value of {@link System#nanoTime()} when the stage started.
+     * @param result
+     * @return Future completed after the stage is recorded.
+     */
+    public <T> CompletableFuture<T> observeCompletion(String stage, FedoraMessage m, long start_nanos,
+            CompletableFuture<T> result) {
+        return result.whenComplete((v, e) -> observe(stage, m, start_nanos, e));
+    }
+
+    /**
+     * Record the latency of a stage which succeeded.
+     *
+     * @param stage
+     * @param m - Message being handled or null if not known.
+     * @param millis - Latency in milliseconds.
+     */
+    public void observeMillis(String stage, FedoraMessage m, long millis) {
+        observe_nanos(stage, m, TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis)), null);
+    }
+
+    private void observe_nanos(String stage, FedoraMessage m, long nanos, Throwable failure) {
+        String key = stage_labels(stage, m);
+
+        latencies.computeIfAbsent(key, k -> new Histogram()).observe(nanos);
+
+        if (failure != null) {
+            failures.computeIfAbsent(key, k -> new AtomicLong()).incrementAndGet();
+        }
+    }
+
+    /**
+     * @param outcome - What happened to a received message.
+     */
+    public void countMessage(String outcome) {
+        messages.computeIfAbsent(labels("outcome", outcome), k -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * @param field - Property removed from a document.
+     * @param reason - Why it was removed.
+     */
+    public void countDroppedField(String field, String reason) {
+        dropped_fields.computeIfAbsent(labels("field", field, "reason", reason), k -> new AtomicLong())
+                .incrementAndGet();
+    }
+
+    /**
+     * @param status - HTTP status of the rejected Elasticsearch request or 0 if it could not be made.
+     */
+    public void countRetry(int status) {
+        retries.computeIfAbsent(labels("status", String.valueOf(status)), k -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * @param result - Whether a message was absorbed into an open window or a window was cancelled.
+     */
+    public void countCoalesced(String result) {
+        coalesced.computeIfAbsent(labels("result", result), k -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * @param index - Elasticsearch index URL.
+     * @param limit - Current limit on messages in flight for the index.
+     */
+    public void registerThrottle(String index, IntSupplier limit) {
+        throttle_limits.put(labels("index", index), limit);
+    }
+
+    /**
+     * @param index - Elasticsearch index URL.
+     */
+    public void unregisterThrottle(String index) {
+        throttle_limits.remove(labels("index", index));
+    }
+
+    /**
+     * @param lane - Lane of the striper.
+     * @param depth - Current number of messages waiting in the lane.
+     */
+    public void registerLaneDepth(int lane, IntSupplier depth) {
+        lane_depths.put(labels("lane", String.valueOf(lane)), depth);
+    }
+
+    private static void write_gauges(Writer out, String name, String help, Map<String, IntSupplier> gauges)
+            throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " gauge\n");
+
+        for (Map.Entry<String, IntSupplier> e : new TreeMap<>(gauges).entrySet()) {
+            out.write(name + "{" + e.getKey() + "} " + e.getValue().getAsInt() + "\n");
+        }
+    }
+
+    private static void write_counters(Writer out, String name, String help, Map<String, AtomicLong> counters)
+            throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " counter\n");
+
+        for (Map.Entry<String, AtomicLong> e : new TreeMap<>(counters).entrySet()) {
+            out.write(name + "{" + e.getKey() + "} " + e.getValue().get() + "\n");
+        }
+    }
+
+    /**
+     * Write all metrics in the Prometheus text exposition format.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void write(Writer out) throws IOException {
+        String name = "pass_indexer_stage_seconds";
+
+        out.write("# HELP " + name + " Latency of each stage of handling a message.\n");
+        out.write("# TYPE " + name + " histogram\n");
+
+        for (Map.Entry<String, Histogram> e : new TreeMap<>(latencies).entrySet()) {
+            Histogram h = e.getValue();
+            long cumulative = 0;
+
+            for (int i = 0; i <= BUCKETS.length; i++) {
+                cumulative += h.counts.get(i);
+
+                String le = i < BUCKETS.length ? Double.toString(BUCKETS[i]) : "+Inf";
+
+                out.write(name + "_bucket{" + e.getKey() + ",le=\"" + le + "\"} " + cumulative + "\n");
+            }
+
+            out.write(name + "_sum{" + e.getKey() + "} " + (h.sum_nanos.get() / 1e9) + "\n");
+            out.write(name + "_count{" + e.getKey() + "} " + cumulative + "\n");
+        }
+
+        write_counters(out, "pass_indexer_stage_failures_total", "Failures of each stage of handling a message.",
+                failures);
+        write_counters(out, "pass_indexer_messages_total", "Messages received by outcome.", messages);
+        write_counters(out, "pass_indexer_dropped_fields_total", "Properties removed from documents.",
+                dropped_fields);
+        write_counters(out, "pass_indexer_es_retries_total", "Elasticsearch requests retried by status.", retries);
+        write_counters(out, "pass_indexer_coalesced_total",
+                "Messages absorbed into coalescing windows and windows which cancelled out.", coalesced);
+
+        write_gauges(out, "pass_indexer_es_throttle_limit",
+                "Current limit on messages in flight, lowered while Elasticsearch is overloaded.", throttle_limits);
+        write_gauges(out, "pass_indexer_lane_queue_depth", "Messages waiting in each lane of the striper.",
+                lane_depths);
+
+        out.flush();
+    }
+}
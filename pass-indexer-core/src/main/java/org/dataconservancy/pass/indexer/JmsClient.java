@@ -19,7 +19,10 @@ package org.dataconservancy.pass.indexer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 import javax.jms.Connection;
@@ -27,6 +30,7 @@ import javax.jms.ConnectionFactory;
 import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
+import javax.jms.MessageConsumer;
 import javax.jms.MessageListener;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
@@ -53,6 +57,12 @@ public class JmsClient implements AutoCloseable {
 
     private Session session;
 
+    // Session of the producer, only used while holding the lock of the client
+    private Session write_session;
+
+    // Sessions of consumers other than the first listener
+    private final List<Session> sessions = Collections.synchronizedList(new ArrayList<>());
+
     public void setConnectionFactory(ConnectionFactory factory) {
         this.connectionFactory = factory;
     }
@@ -71,7 +81,8 @@ public class JmsClient implements AutoCloseable {
         if (this.producer == null) {
             addSessionListener(s -> {
                 try {
-                    this.producer = session.createProducer(null);
+                    this.write_session = conn.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                    this.producer = write_session.createProducer(null);
                 } catch (final JMSException e) {
                     throw new JmsRuntimeException(e);
                 }
@@ -81,6 +92,14 @@ public class JmsClient implements AutoCloseable {
         connect();
     }
 
+    // Create a session which is closed with the client.
+    private Session create_session(boolean transacted) throws JMSException {
+        final Session result = transacted ? conn.createSession(true, Session.SESSION_TRANSACTED)
+                : conn.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        sessions.add(result);
+        return result;
+    }
+
     private void addSessionListener(Consumer<Session> listener) {
         this.sessionListeners.add(listener);
         if (connected) {
@@ -89,17 +108,196 @@ public class JmsClient implements AutoCloseable {
     }
 
     public void listen(String queue, MessageListener listener) {
+        listen(queue, 1, listener);
+    }
+
+    /**
+     * Listen to a queue with several consumers. Each consumer after the first has its own session,
+     * so the listener may be invoked concurrently by up to that many threads and must be thread safe.
+     *
+     * @param queue
+     * @param consumers - Number of consumers
+     * @param listener
+     */
+    public void listen(String queue, int consumers, MessageListener listener) {
+        listen(queue, null, consumers, listener);
+    }
+
+    /**
+     * Listen to a queue with several consumers which only receive messages matching a selector.
+     * Messages which do not match are left on the broker.
+     *
+     * @param queue
+     * @param selector - JMS message selector or null for all messages
+     * @param consumers - Number of consumers
+     * @param listener
+     */
+    public void listen(String queue, String selector, int consumers, MessageListener listener) {
         this.addSessionListener(s -> {
             try {
-                final Destination dest = s.createQueue(queue);
-                s.createConsumer(dest).setMessageListener(listener);
-                LOG.info("Listening on " + dest);
+                for (int i = 0; i < consumers; i++) {
+                    final Session consumer_session = i == 0 ? s : create_session(false);
+                    final Destination dest = consumer_session.createQueue(queue);
+                    consumer_session.createConsumer(dest, selector).setMessageListener(listener);
+                    LOG.info("Listening on " + dest + (selector == null ? "" : " with selector " + selector));
+                }
             } catch (final JMSException e) {
                 throw new JmsRuntimeException(e);
             }
         });
     }
 
+    /**
+     * Turn a message from one queue into a message for another.
+     */
+    @FunctionalInterface
+    public interface MessageTransform {
+        /**
+         * @param session - Session to create the new message with
+         * @param message
+         * @return Message to send or null to drop the message
+         * @throws JMSException
+         */
+        Message apply(Session session, Message message) throws JMSException;
+    }
+
+    /**
+     * Move messages from one queue to another through an exclusive consumer. The broker only delivers
+     * to one exclusive consumer of a queue at a time, so among all clients forwarding the same queue one
+     * forwards while the others wait to take over when it leaves, and the order of messages is kept.
+     * Each message is received and its replacement sent in one transaction.
+     *
+     * @param source - Queue to move messages from
+     * @param selector - JMS message selector or null for all messages
+     * @param target - Queue to move messages to
+     * @param transform - Returns the message to send for each received message
+     */
+    public void forward(String source, String selector, String target, MessageTransform transform) {
+        this.addSessionListener(s -> {
+            try {
+                final Session forward_session = create_session(true);
+                final Destination dest = forward_session.createQueue(source + "?consumer.exclusive=true");
+                final MessageProducer forward_producer = forward_session
+                        .createProducer(forward_session.createQueue(target));
+
+                forward_session.createConsumer(dest, selector).setMessageListener(msg -> {
+                    try {
+                        Message result = transform.apply(forward_session, msg);
+
+                        if (result != null) {
+                            forward_producer.send(result);
+                        }
+
+                        forward_session.commit();
+                    } catch (final JMSException | RuntimeException e) {
+                        LOG.error("Failed to forward message from " + source + " to " + target + ", rolling back", e);
+
+                        try {
+                            forward_session.rollback();
+                        } catch (final JMSException x) {
+                            LOG.warn("Failed to roll back forwarded message", x);
+                        }
+                    }
+                });
+
+                LOG.info("Forwarding " + source + " to " + target + (selector == null ? "" : " with selector " + selector));
+            } catch (final JMSException e) {
+                throw new JmsRuntimeException(e);
+            }
+        });
+    }
+
+    /**
+     * Listen to a queue with consumers which acknowledge messages in batches. Each consumer has its
+     * own transacted session and thread which receives up to batch_size messages, or as many as arrive
+     * within batch_wait_ms of the first, passes them to the handler, and waits for all of them to be
+     * handled. The batch is then committed with one acknowledgement if every message succeeded and
+     * otherwise rolled back so the broker delivers the whole batch again.
+     *
+     * @param queue
+     * @param selector - JMS message selector or null for all messages
+     * @param consumers - Number of consumers
+     * @param batch_size - Maximum number of messages acknowledged together
+     * @param batch_wait_ms - Maximum time to wait for a batch to fill
+     * @param handler - Returns a future completed when the message is handled. Must be thread safe.
+     */
+    public void listenBatched(String queue, String selector, int consumers, int batch_size, long batch_wait_ms,
+            Function<Message, CompletableFuture<Void>> handler) {
+        this.addSessionListener(s -> {
+            try {
+                for (int i = 0; i < consumers; i++) {
+                    final Session batch_session = create_session(true);
+                    final Destination dest = batch_session.createQueue(queue);
+                    final MessageConsumer consumer = batch_session.createConsumer(dest, selector);
+
+                    final Thread t = new Thread(
+                            () -> consume_batches(batch_session, consumer, batch_size, batch_wait_ms, handler),
+                            "jms-batch-consumer-" + i);
+                    t.setDaemon(true);
+                    t.start();
+
+                    LOG.info("Listening on " + dest + " in batches of " + batch_size
+                            + (selector == null ? "" : " with selector " + selector));
+                }
+            } catch (final JMSException e) {
+                throw new JmsRuntimeException(e);
+            }
+        });
+    }
+
+    // Receive and handle batches until the session is closed.
+    private void consume_batches(Session batch_session, MessageConsumer consumer, int batch_size, long batch_wait_ms,
+            Function<Message, CompletableFuture<Void>> handler) {
+        final List<CompletableFuture<Void>> batch = new ArrayList<>();
+
+        try {
+            while (true) {
+                final Message first = consumer.receive(1000);
+
+                if (first == null) {
+                    continue;
+                }
+
+                batch.clear();
+                batch.add(start_handler(handler, first));
+
+                final long deadline = System.currentTimeMillis() + batch_wait_ms;
+
+                while (batch.size() < batch_size) {
+                    final long wait = deadline - System.currentTimeMillis();
+                    final Message next = wait > 0 ? consumer.receive(wait) : null;
+
+                    if (next == null) {
+                        break;
+                    }
+
+                    batch.add(start_handler(handler, next));
+                }
+
+                try {
+                    CompletableFuture.allOf(batch.toArray(new CompletableFuture<?>[batch.size()])).join();
+                    batch_session.commit();
+                    LOG.debug("Acknowledged batch of {} messages", batch.size());
+                } catch (final CompletionException e) {
+                    LOG.error("Failed to handle batch of " + batch.size() + " messages, rolling back", e.getCause());
+                    batch_session.rollback();
+                }
+            }
+        } catch (final JMSException e) {
+            // Session closed when the connection is closed or reconnected
+            LOG.debug("Batch consumer stopped", e);
+        }
+    }
+
+    private static CompletableFuture<Void> start_handler(Function<Message, CompletableFuture<Void>> handler,
+            Message message) {
+        try {
+            return handler.apply(message);
+        } catch (final RuntimeException e) {
+            return Futures.failed(e);
+        }
+    }
+
     public Supplier<Session> getSessionSupplier() {
         return () -> {
             while (!connected) {
@@ -115,7 +313,32 @@ public class JmsClient implements AutoCloseable {
         };
     }
 
-    public synchronized void write(String queue, Message message) {
+    /**
+     * Create a message to write.
+     */
+    @FunctionalInterface
+    public interface MessageCreator {
+        /**
+         * @param session - Session to create the message with
+         * @return Message
+         * @throws JMSException
+         */
+        Message create(Session session) throws JMSException;
+    }
+
+    public void write(String queue, Message message) {
+        write(queue, s -> message);
+    }
+
+    /**
+     * Create a message and send it to a queue. Sessions may only be used by one thread at a time, so
+     * this should be used instead of the session of {@link #getSessionSupplier()} by threads other than
+     * a listener.
+     *
+     * @param queue
+     * @param creator - Creates the message with the session of the producer.
+     */
+    public synchronized void write(String queue, MessageCreator creator) {
         LOG.debug("Sending message to queue {}", queue);
         while (!connected) {
             try {
@@ -127,7 +350,7 @@ public class JmsClient implements AutoCloseable {
         }
 
         try {
-            producer.send(session.createQueue(queue), message);
+            producer.send(write_session.createQueue(queue), creator.create(write_session));
         } catch (final JMSException e) {
             throw new RuntimeException("Error writing to queue " + queue, e);
         }
@@ -184,6 +407,20 @@ public class JmsClient implements AutoCloseable {
             LOG.info("Closing ActiveMQ Sessions");
             connected = false;
             producer.close();
+            write_session.close();
+
+            synchronized (sessions) {
+                for (final Session s : sessions) {
+                    try {
+                        s.close();
+                    } catch (final JMSException j) {
+                        LOG.debug("Exception while closing session", j);
+                    }
+                }
+
+                sessions.clear();
+            }
+
             session.close();
             conn.close();
         } catch (final JMSException j) {
@@ -0,0 +1,453 @@
+/*
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.indexer;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Pull parser which reads JSON one token at a time from a character stream.
+ * Only a small fixed buffer is held, so values can be skipped or copied to a
+ * {@link JsonStreamWriter} without being materialized.
+ */
+final class JsonStreamReader {
+    enum Token {
+        BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+    }
+
+    // Receives the characters of a decoded string.
+    @FunctionalInterface
+    private interface CharConsumer {
+        void accept(char c) throws IOException;
+    }
+
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_OBJECT = 2;
+    private static final int DANGLING_NAME = 3;
+    private static final int NONEMPTY_OBJECT = 4;
+    private static final int EMPTY_ARRAY = 5;
+    private static final int NONEMPTY_ARRAY = 6;
+
+    private final Reader in;
+    private final char[] buf;
+    private int pos;
+    private int limit;
+    private long offset;
+
+    private int[] scopes;
+    private int depth;
+
+    private Token peeked;
+
+    JsonStreamReader(Reader in) {
+        this.in = in;
+        this.buf = new char[1024];
+        this.scopes = new int[32];
+        this.scopes[depth++] = EMPTY_DOCUMENT;
+    }
+
+    private IOException syntax_error(String msg) {
+        return new IOException("Malformed JSON at character " + (offset + pos) + ": " + msg);
+    }
+
+    // Return next character or -1 at end of input.
+    private int read() throws IOException {
+        if (pos == limit) {
+            offset += limit;
+            pos = 0;
+            limit = in.read(buf, 0, buf.length);
+
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+
+        return buf[pos++];
+    }
+
+    // Return next character which is not whitespace or -1 at end of input.
+    private int read_non_whitespace() throws IOException {
+        for (;;) {
+            int c = read();
+
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+        }
+    }
+
+    private void push(int scope) {
+        if (depth == scopes.length) {
+            scopes = Arrays.copyOf(scopes, depth * 2);
+        }
+
+        scopes[depth++] = scope;
+    }
+
+    // Determine the type of value starting with c. Literals are read later so only the first character is consumed.
+    private Token value_token(int c) throws IOException {
+        switch (c) {
+        case '{':
+            return Token.BEGIN_OBJECT;
+        case '[':
+            return Token.BEGIN_ARRAY;
+        case '"':
+            return Token.STRING;
+        case 't':
+        case 'f':
+            pos--;
+            return Token.BOOLEAN;
+        case 'n':
+            pos--;
+            return Token.NULL;
+        default:
+            if (c == '-' || (c >= '0' && c <= '9')) {
+                pos--;
+                return Token.NUMBER;
+            }
+
+            throw syntax_error("Unexpected character " + (c == -1 ? "end of input" : "'" + (char) c + "'"));
+        }
+    }
+
+    /**
+     * @return Type of the next token without consuming it.
+     * @throws IOException
+     */
+    Token peek() throws IOException {
+        if (peeked != null) {
+            return peeked;
+        }
+
+        int c;
+
+        switch (scopes[depth - 1]) {
+        case EMPTY_DOCUMENT:
+            scopes[depth - 1] = NONEMPTY_DOCUMENT;
+            peeked = value_token(read_non_whitespace());
+            break;
+        case NONEMPTY_DOCUMENT:
+            if (read_non_whitespace() != -1) {
+                throw syntax_error("Expected end of input");
+            }
+
+            peeked = Token.END_DOCUMENT;
+            break;
+        case EMPTY_ARRAY:
+            scopes[depth - 1] = NONEMPTY_ARRAY;
+            c = read_non_whitespace();
+            peeked = c == ']' ? Token.END_ARRAY : value_token(c);
+            break;
+        case NONEMPTY_ARRAY:
+            c = read_non_whitespace();
+
+            if (c == ']') {
+                peeked = Token.END_ARRAY;
+            } else if (c == ',') {
+                peeked = value_token(read_non_whitespace());
+            } else {
+                throw syntax_error("Expected ',' or ']'");
+            }
+
+            break;
+        case EMPTY_OBJECT:
+        case NONEMPTY_OBJECT:
+            c = read_non_whitespace();
+
+            if (c == '}') {
+                peeked = Token.END_OBJECT;
+                break;
+            }
+
+            if (scopes[depth - 1] == NONEMPTY_OBJECT) {
+                if (c != ',') {
+                    throw syntax_error("Expected ',' or '}'");
+                }
+
+                c = read_non_whitespace();
+            }
+
+            if (c != '"') {
+                throw syntax_error("Expected name");
+            }
+
+            scopes[depth - 1] = DANGLING_NAME;
+            peeked = Token.NAME;
+            break;
+        case DANGLING_NAME:
+            if (read_non_whitespace() != ':') {
+                throw syntax_error("Expected ':'");
+            }
+
+            scopes[depth - 1] = NONEMPTY_OBJECT;
+            peeked = value_token(read_non_whitespace());
+            break;
+        default:
+            throw new IllegalStateException();
+        }
+
+        return peeked;
+    }
+
+    private void expect(Token token) throws IOException {
+        if (peek() != token) {
+            throw syntax_error("Expected " + token + " but was " + peeked);
+        }
+
+        peeked = null;
+    }
+
+    void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+        depth--;
+    }
+
+    void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+        depth--;
+    }
+
+    /**
+     * @return Whether the current object or array has another member.
+     * @throws IOException
+     */
+    boolean hasNext() throws IOException {
+        Token t = peek();
+        return t != Token.END_OBJECT && t != Token.END_ARRAY && t != Token.END_DOCUMENT;
+    }
+
+    String nextName() throws IOException {
+        expect(Token.NAME);
+
+        StringBuilder sb = new StringBuilder();
+        read_string(sb::append);
+        return sb.toString();
+    }
+
+    String nextString() throws IOException {
+        expect(Token.STRING);
+
+        StringBuilder sb = new StringBuilder();
+        read_string(sb::append);
+        return sb.toString();
+    }
+
+    /**
+     * @return Text of the next number, boolean, or null exactly as it appears.
+     * @throws IOException
+     */
+    String nextLiteral() throws IOException {
+        Token t = peek();
+
+        if (t != Token.NUMBER && t != Token.BOOLEAN && t != Token.NULL) {
+            throw syntax_error("Expected literal but was " + t);
+        }
+
+        peeked = null;
+
+        StringBuilder sb = new StringBuilder();
+
+        for (;;) {
+            int c = read();
+
+            if (c == -1) {
+                break;
+            }
+
+            if (!(Character.isLetterOrDigit(c) || c == '-' || c == '+' || c == '.')) {
+                pos--;
+                break;
+            }
+
+            sb.append((char) c);
+        }
+
+        String literal = sb.toString();
+
+        if ((t == Token.BOOLEAN && !literal.equals("true") && !literal.equals("false"))
+                || (t == Token.NULL && !literal.equals("null"))) {
+            throw syntax_error("Unexpected literal " + literal);
+        }
+
+        return literal;
+    }
+
+    // Read the rest of a string after the opening quote, decoding escapes.
+    private void read_string(CharConsumer out) throws IOException {
+        for (;;) {
+            int c = read();
+
+            if (c == -1) {
+                throw syntax_error("Unterminated string");
+            }
+
+            if (c == '"') {
+                return;
+            }
+
+            if (c != '\\') {
+                out.accept((char) c);
+                continue;
+            }
+
+            c = read();
+
+            switch (c) {
+            case 'b':
+                out.accept('\b');
+                break;
+            case 'f':
+                out.accept('\f');
+                break;
+            case 'n':
+                out.accept('\n');
+                break;
+            case 'r':
+                out.accept('\r');
+                break;
+            case 't':
+                out.accept('\t');
+                break;
+            case 'u':
+                int code = 0;
+
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(read(), 16);
+
+                    if (digit == -1) {
+                        throw syntax_error("Invalid unicode escape");
+                    }
+
+                    code = code * 16 + digit;
+                }
+
+                out.accept((char) code);
+                break;
+            case '"':
+            case '\\':
+            case '/':
+                out.accept((char) c);
+                break;
+            default:
+                throw syntax_error("Invalid escape");
+            }
+        }
+    }
+
+    /**
+     * Consume the next value including any nested values.
+     *
+     * @throws IOException
+     */
+    void skipValue() throws IOException {
+        int count = 0;
+
+        do {
+            switch (peek()) {
+            case BEGIN_OBJECT:
+                beginObject();
+                count++;
+                break;
+            case BEGIN_ARRAY:
+                beginArray();
+                count++;
+                break;
+            case END_OBJECT:
+                endObject();
+                count--;
+                break;
+            case END_ARRAY:
+                endArray();
+                count--;
+                break;
+            case NAME:
+            case STRING:
+                peeked = null;
+                read_string(c -> {
+                });
+                break;
+            case END_DOCUMENT:
+                throw syntax_error("Unexpected end of document");
+            default:
+                nextLiteral();
+                break;
+            }
+        } while (count > 0);
+    }
+
+    /**
+     * Consume the next value and write it including any nested values.
+     *
+     * @param out
+     * @throws IOException
+     */
+    void copyValue(JsonStreamWriter out) throws IOException {
+        int count = 0;
+
+        do {
+            switch (peek()) {
+            case BEGIN_OBJECT:
+                beginObject();
+                out.beginObject();
+                count++;
+                break;
+            case BEGIN_ARRAY:
+                beginArray();
+                out.beginArray();
+                count++;
+                break;
+            case END_OBJECT:
+                endObject();
+                out.endObject();
+                count--;
+                break;
+            case END_ARRAY:
+                endArray();
+                out.endArray();
+                count--;
+                break;
+            case NAME:
+                out.name(nextName());
+                break;
+            case STRING:
+                peeked = null;
+                out.beginString();
+                read_string(out::stringChar);
+                out.endString();
+                break;
+            case END_DOCUMENT:
+                throw syntax_error("Unexpected end of document");
+            default:
+                out.literal(nextLiteral());
+                break;
+            }
+        } while (count > 0);
+    }
+}
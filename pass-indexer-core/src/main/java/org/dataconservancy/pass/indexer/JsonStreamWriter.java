@@ -0,0 +1,161 @@
+/*
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.indexer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.BitSet;
+
+/**
+ * Write compact JSON one token at a time to a character stream.
+ * Output is canonical: no whitespace and a single escaping for each character. So the same
+ * document always produces the same bytes no matter how its source was formatted.
+ */
+final class JsonStreamWriter {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Writer out;
+
+    // For each open object or array whether a member has been written
+    private final BitSet nonempty;
+    private int depth;
+    private boolean after_name;
+
+    JsonStreamWriter(Writer out) {
+        this.out = out;
+        this.nonempty = new BitSet();
+    }
+
+    // Write separator if needed before a value.
+    private void before_value() throws IOException {
+        if (after_name) {
+            after_name = false;
+            return;
+        }
+
+        if (depth > 0) {
+            if (nonempty.get(depth)) {
+                out.write(',');
+            }
+
+            nonempty.set(depth);
+        }
+    }
+
+    void beginObject() throws IOException {
+        before_value();
+        out.write('{');
+        nonempty.clear(++depth);
+    }
+
+    void endObject() throws IOException {
+        depth--;
+        out.write('}');
+    }
+
+    void beginArray() throws IOException {
+        before_value();
+        out.write('[');
+        nonempty.clear(++depth);
+    }
+
+    void endArray() throws IOException {
+        depth--;
+        out.write(']');
+    }
+
+    void name(String name) throws IOException {
+        before_value();
+        write_string(name);
+        out.write(':');
+        after_name = true;
+    }
+
+    void value(String s) throws IOException {
+        before_value();
+        write_string(s);
+    }
+
+    /**
+     * @param literal - Number, boolean, or null exactly as it should appear.
+     * @throws IOException
+     */
+    void literal(String literal) throws IOException {
+        before_value();
+        out.write(literal);
+    }
+
+    // A string value may also be written a character at a time.
+
+    void beginString() throws IOException {
+        before_value();
+        out.write('"');
+    }
+
+    void stringChar(char c) throws IOException {
+        switch (c) {
+        case '"':
+            out.write("\\\"");
+            break;
+        case '\\':
+            out.write("\\\\");
+            break;
+        case '\b':
+            out.write("\\b");
+            break;
+        case '\f':
+            out.write("\\f");
+            break;
+        case '\n':
+            out.write("\\n");
+            break;
+        case '\r':
+            out.write("\\r");
+            break;
+        case '\t':
+            out.write("\\t");
+            break;
+        default:
+            if (c < 0x20) {
+                out.write("\\u00");
+                out.write(HEX[c >> 4]);
+                out.write(HEX[c & 0xf]);
+            } else {
+                out.write(c);
+            }
+            break;
+        }
+    }
+
+    void endString() throws IOException {
+        out.write('"');
+    }
+
+    private void write_string(String s) throws IOException {
+        out.write('"');
+
+        for (int i = 0; i < s.length(); i++) {
+            stringChar(s.charAt(i));
+        }
+
+        out.write('"');
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+}
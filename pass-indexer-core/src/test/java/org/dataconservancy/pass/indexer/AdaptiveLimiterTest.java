@@ -0,0 +1,56 @@
+package org.dataconservancy.pass.indexer;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class AdaptiveLimiterTest {
+    // Limit is halved once per interval and grows back by one per limit's worth of successes.
+    @Test
+    public void testAdapt() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(8, 60 * 1000);
+
+        limiter.onOverload();
+        limiter.onOverload();
+
+        assertEquals(4, limiter.getLimit());
+
+        for (int i = 0; i < 4; i++) {
+            limiter.onSuccess();
+        }
+
+        assertEquals(5, limiter.getLimit());
+
+        for (int i = 0; i < 100; i++) {
+            limiter.onSuccess();
+        }
+
+        assertEquals(8, limiter.getLimit());
+    }
+
+    // A thread waits while the limit is in use.
+    @Test
+    public void testAcquire() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 0);
+
+        limiter.acquire();
+
+        Thread t = new Thread(() -> {
+            try {
+                limiter.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        t.start();
+        t.join(100);
+
+        assertEquals(true, t.isAlive());
+
+        limiter.release();
+        t.join(10000);
+
+        assertEquals(false, t.isAlive());
+    }
+}
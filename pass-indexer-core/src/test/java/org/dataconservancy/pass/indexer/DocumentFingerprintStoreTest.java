@@ -0,0 +1,71 @@
+package org.dataconservancy.pass.indexer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DocumentFingerprintStoreTest {
+    private Path file;
+
+    @Before
+    public void setup() throws IOException {
+        file = Files.createTempFile("fingerprints", ".dat");
+        Files.delete(file);
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    // Key order and formatting do not matter.
+    @Test
+    public void testFingerprint() {
+        long fp = DocumentFingerprintStore.fingerprint(new JSONObject("{\"a\": 1, \"b\": [\"x\", {\"c\": true}]}"));
+
+        assertEquals(fp, DocumentFingerprintStore.fingerprint(new JSONObject("{\"b\":[\"x\",{\"c\":true}],\"a\":1}")));
+        assertNotEquals(fp, DocumentFingerprintStore.fingerprint(new JSONObject("{\"a\": 2, \"b\": [\"x\", {\"c\": true}]}")));
+    }
+
+    // Fingerprints persist when the store is opened again.
+    @Test
+    public void testPersist() throws Exception {
+        try (DocumentFingerprintStore store = new DocumentFingerprintStore(file, 100)) {
+            store.put("a", 1);
+            store.put("b", 2);
+            store.put("a", 3);
+            store.remove("b");
+
+            assertTrue(store.contains("a", 3));
+            assertFalse(store.contains("a", 1));
+        }
+
+        try (DocumentFingerprintStore store = new DocumentFingerprintStore(file, 100)) {
+            assertTrue(store.contains("a", 3));
+            assertFalse(store.contains("b", 2));
+            assertFalse(store.contains("c", 3));
+        }
+    }
+
+    // A full store loses fingerprints instead of failing.
+    @Test
+    public void testFull() throws Exception {
+        try (DocumentFingerprintStore store = new DocumentFingerprintStore(file, 4)) {
+            for (int i = 0; i < 100; i++) {
+                store.put("doc" + i, i + 1);
+            }
+
+            assertTrue(store.contains("doc99", 100));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.dataconservancy.pass.indexer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class DocumentNormalizerTest {
+    private final DocumentNormalizer normalizer = DocumentNormalizer.compile(new JSONObject(
+            "{\"@id\": {\"type\": \"keyword\"}, \"@type\": {\"type\": \"keyword\"}, \"name\": {\"type\": \"text\"}," +
+            "\"abstract\": {\"type\": \"text\"}, \"coPis\": {\"type\": \"keyword\"}," +
+            "\"awardDate\": {\"type\": \"date\"}, \"submitted\": {\"type\": \"boolean\"}," +
+            "\"count\": {\"type\": \"long\"}}"));
+
+    // Unsupported properties, object values, and the context are removed.
+    @Test
+    public void testRemoveProperties() throws Exception {
+        String json = "{\n" +
+                "  \"@id\" : \"http://example.org/fcrepo/rest/grants/1\",\n" +
+                "  \"@context\" : {\"name\" : \"http://example.org/name\", \"nested\" : [1, {\"a\" : [true]}]},\n" +
+                "  \"healthy\" : true,\n" +
+                "  \"name\" : {\"@value\" : \"moo\"},\n" +
+                "  \"coPis\" : [ \"http://example.org/a\", \"http://example.org/b\" ],\n" +
+                "  \"awardDate\" : \"2018-01-01T00:00:00.000Z\"\n" +
+                "}";
+
+        String result = normalizer.normalize(json);
+
+        assertEquals("{\"@id\":\"http://example.org/fcrepo/rest/grants/1\",\"coPis\":[\"http://example.org/a\","
+                + "\"http://example.org/b\"],\"awardDate\":\"2018-01-01T00:00:00Z\"}", result);
+    }
+
+    // Strings and literals survive a round trip.
+    @Test
+    public void testValues() throws Exception {
+        JSONObject o = new JSONObject();
+        o.put("@id", "quote \" backslash \\ slash / tab \t newline \n control \u0001 unicode \u00e9\u4e2d");
+        o.put("@type", -12.5e3);
+        o.put("name", JSONObject.NULL);
+        o.put("abstract", new String(new char[5000]).replace('\0', 'x'));
+
+        JSONObject result = new JSONObject(normalizer.normalize(o.toString()));
+
+        assertEquals(o.toString(), result.toString());
+    }
+
+    // Formatting of the source does not change the result.
+    @Test
+    public void testCanonical() throws Exception {
+        String compact = normalizer.normalize("{\"@id\":\"a\\/b\",\"coPis\":[\"\\u0041\"]}");
+        String pretty = normalizer.normalize("{\n  \"@id\" : \"a/b\",\n  \"coPis\" : [ \"A\" ]\n}");
+
+        assertEquals(compact, pretty);
+    }
+
+    // Values are coerced to the type in the mapping.
+    @Test
+    public void testCoerce() throws Exception {
+        String json = "{\"awardDate\": \"2018-04-10T09:37:49.667-04:00\", \"submitted\": \"true\", \"count\": \"42\"}";
+
+        assertEquals("{\"awardDate\":\"2018-04-10T13:37:49.667Z\",\"submitted\":true,\"count\":42}",
+                normalizer.normalize(json));
+
+        assertEquals("{\"awardDate\":\"2018-01-01T00:00:00Z\"}", normalizer.normalize("{\"awardDate\": 1514764800000}"));
+        assertEquals("{\"awardDate\":\"2018-01-01T00:00:00Z\"}",
+                normalizer.normalize("{\"awardDate\": \"2018-01-01T00:00:00\"}"));
+        assertEquals("{\"awardDate\":\"2018-01-01\"}", normalizer.normalize("{\"awardDate\": \"2018-01-01\"}"));
+        assertEquals("{\"awardDate\":null}", normalizer.normalize("{\"awardDate\": null}"));
+    }
+
+    // A year or a year and month is a valid date, and dates with a format of their own are not checked.
+    @Test
+    public void testPartialDates() throws Exception {
+        assertEquals("{\"awardDate\":\"2018\"}", normalizer.normalize("{\"awardDate\": \"2018\"}"));
+        assertEquals("{\"awardDate\":\"2018-04\"}", normalizer.normalize("{\"awardDate\": \"2018-04\"}"));
+        assertEquals("{}", normalizer.normalize("{\"awardDate\": \"2018-13\"}"));
+
+        DocumentNormalizer formatted = DocumentNormalizer.compile(new JSONObject(
+                "{\"startDate\": {\"type\": \"date\", \"format\": \"MM/dd/yyyy\"}," +
+                "\"endDate\": {\"type\": \"date\", \"format\": \"strict_date_optional_time||epoch_millis\"}}"));
+
+        assertEquals("{\"startDate\":\"04/10/2018\"}", formatted.normalize("{\"startDate\": \"04/10/2018\"}"));
+        assertEquals("{}", formatted.normalize("{\"endDate\": \"04/10/2018\"}"));
+    }
+
+    // Invalid values are removed and counted by property.
+    @Test
+    public void testReject() throws Exception {
+        String json = "{\"@id\": \"a\", \"awardDate\": \"last tuesday\", \"submitted\": \"yes\", " +
+                "\"count\": [1, \"two\", 3], \"name\": \"moo\"}";
+
+        assertEquals("{\"@id\":\"a\",\"count\":[1,3],\"name\":\"moo\"}", normalizer.normalize(json));
+
+        assertEquals(Long.valueOf(1), normalizer.getRejectedCounts().get("awardDate"));
+        assertEquals(Long.valueOf(1), normalizer.getRejectedCounts().get("submitted"));
+        assertEquals(Long.valueOf(1), normalizer.getRejectedCounts().get("count"));
+        assertEquals(null, normalizer.getRejectedCounts().get("name"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformed() throws Exception {
+        normalizer.normalize("{\"@id\": \"a\", \"name\": }");
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws Exception {
+        normalizer.normalize("{\"@id\": \"a\", \"abstract\": \"moo");
+    }
+}
@@ -0,0 +1,122 @@
+package org.dataconservancy.pass.indexer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+public class ElasticSearchAliasManagerTest {
+    private MockWebServer server;
+    private ElasticSearchAliasManager aliases;
+
+    @Before
+    public void setup() throws Exception {
+        server = new MockWebServer();
+        aliases = new ElasticSearchAliasManager(server.url("/es/pass/").toString());
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void testUrls() {
+        assertEquals("pass", aliases.getAlias());
+        assertEquals(server.url("/es/pass_1/").toString(), aliases.getIndexUrl("pass_1"));
+    }
+
+    @Test
+    public void testGetNextIndex() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(404).setBody("{}"));
+        server.enqueue(new MockResponse().setBody("{\"pass_2\": {\"aliases\": {\"pass_next\": {}}}}"));
+
+        assertNull(aliases.getNextIndex());
+        assertEquals("pass_2", aliases.getNextIndex());
+        assertEquals("/es/_alias/pass_next", server.takeRequest().getPath());
+    }
+
+    // Next index is created with bulk load settings and marked by an alias.
+    @Test
+    public void testCreateNextIndex() throws Exception {
+        server.enqueue(new MockResponse().setBody("{\"acknowledged\": true}"));
+
+        String index = aliases.createNextIndex(null);
+
+        assertTrue(index.startsWith("pass_"));
+
+        RecordedRequest put = server.takeRequest();
+
+        assertEquals("PUT", put.getMethod());
+        assertEquals("/es/" + index + "/", put.getPath());
+
+        JSONObject config = new JSONObject(put.getBody().readUtf8());
+        JSONObject settings = config.getJSONObject("settings").getJSONObject("index");
+
+        assertEquals("-1", settings.getString("refresh_interval"));
+        assertEquals(0, settings.getInt("number_of_replicas"));
+        assertTrue(config.getJSONObject("aliases").has("pass_next"));
+        assertTrue(config.has("mappings"));
+    }
+
+    // Settings from the configuration are restored.
+    @Test
+    public void testFinishBulkLoad() throws Exception {
+        server.enqueue(new MockResponse().setBody("{\"acknowledged\": true}"));
+        server.enqueue(new MockResponse().setBody("{}"));
+
+        aliases.finishBulkLoad("pass_2", null);
+
+        RecordedRequest put = server.takeRequest();
+
+        assertEquals("/es/pass_2/_settings", put.getPath());
+
+        JSONObject settings = new JSONObject(put.getBody().readUtf8()).getJSONObject("index");
+
+        assertEquals("10s", settings.getString("refresh_interval"));
+        assertEquals(1, settings.getInt("number_of_replicas"));
+        assertEquals("/es/pass_2/_refresh", server.takeRequest().getPath());
+    }
+
+    // Alias is moved from the old index to the new one in a single request.
+    @Test
+    public void testSwap() throws Exception {
+        server.enqueue(new MockResponse().setBody("{\"pass_1\": {\"aliases\": {\"pass\": {}}}}"));
+        server.enqueue(new MockResponse().setBody("{\"acknowledged\": true}"));
+
+        assertEquals(Collections.singleton("pass_1"), aliases.swap("pass_2"));
+
+        server.takeRequest();
+        RecordedRequest post = server.takeRequest();
+
+        assertEquals("/es/_aliases", post.getPath());
+
+        JSONArray actions = new JSONObject(post.getBody().readUtf8()).getJSONArray("actions");
+
+        assertEquals(3, actions.length());
+        assertEquals("pass_1", actions.getJSONObject(0).getJSONObject("remove").getString("index"));
+        assertEquals("pass_2", actions.getJSONObject(1).getJSONObject("add").getString("index"));
+        assertEquals("pass_next", actions.getJSONObject(2).getJSONObject("remove").getString("alias"));
+    }
+
+    // An index with the name of the alias cannot be used.
+    @Test(expected = IOException.class)
+    public void testEnsureAliasConflict() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(404).setBody("{}"));
+        server.enqueue(new MockResponse());
+
+        aliases.ensureAlias(null);
+    }
+}
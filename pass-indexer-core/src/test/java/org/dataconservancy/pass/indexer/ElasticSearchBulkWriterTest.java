@@ -0,0 +1,174 @@
+package org.dataconservancy.pass.indexer;
+
+import static org.dataconservancy.pass.indexer.TestMessages.message;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+public class ElasticSearchBulkWriterTest {
+    private MockWebServer server;
+    private String es_index_url;
+
+    @Before
+    public void setup() throws Exception {
+        server = new MockWebServer();
+        es_index_url = server.url("/es/test/").toString();
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        server.shutdown();
+    }
+
+    private Buffer doc(String json) {
+        return new Buffer().writeUtf8(json);
+    }
+
+    // Flush when the maximum number of actions is reached.
+    @Test
+    public void testFlushOnMaxActions() throws Exception {
+        server.enqueue(new MockResponse().setBody("{\"errors\": false, \"items\": []}"));
+
+        try (ElasticSearchBulkWriter writer = new ElasticSearchBulkWriter(new OkHttpClient(), es_index_url, 2,
+                1024 * 1024, 60 * 1000)) {
+            CompletableFuture<Void> one = writer.index("a", doc("{\"name\":\"moo\"}"),
+                    message(FedoraAction.CREATED, "http://example.org/a"));
+            CompletableFuture<Void> two = writer.delete("b", message(FedoraAction.DELETED, "http://example.org/b"));
+
+            one.get(10, TimeUnit.SECONDS);
+            two.get(10, TimeUnit.SECONDS);
+
+            RecordedRequest post = server.takeRequest();
+
+            assertEquals("POST", post.getMethod());
+            assertEquals("/es/test/_doc/_bulk", post.getRequestUrl().encodedPath());
+
+            String[] lines = post.getBody().readUtf8().split("\n");
+
+            assertEquals(3, lines.length);
+            assertEquals("a", new JSONObject(lines[0]).getJSONObject("index").getString("_id"));
+            assertEquals("moo", new JSONObject(lines[1]).getString("name"));
+            assertEquals("b", new JSONObject(lines[2]).getJSONObject("delete").getString("_id"));
+        }
+    }
+
+    // Flush when the oldest action has waited long enough.
+    @Test
+    public void testFlushOnMaxLatency() throws Exception {
+        server.enqueue(new MockResponse().setBody("{\"errors\": false, \"items\": []}"));
+
+        try (ElasticSearchBulkWriter writer = new ElasticSearchBulkWriter(new OkHttpClient(), es_index_url, 100,
+                1024 * 1024, 100)) {
+            CompletableFuture<Void> one = writer.index("a", doc("{}"), message(FedoraAction.MODIFIED, "http://example.org/a"));
+
+            one.get(10, TimeUnit.SECONDS);
+
+            assertEquals(1, server.getRequestCount());
+        }
+    }
+
+    // Failure of one item is only reported to its message. Deleting a missing document is not a failure.
+    @Test
+    public void testItemFailure() throws Exception {
+        String result = "{\"errors\": true, \"items\": [" +
+                "{\"index\": {\"_id\": \"a\", \"status\": 201}}," +
+                "{\"index\": {\"_id\": \"b\", \"status\": 400, \"error\": {\"type\": \"mapper_parsing_exception\"}}}," +
+                "{\"delete\": {\"_id\": \"c\", \"status\": 404}}]}";
+
+        server.enqueue(new MockResponse().setBody(result));
+
+        try (ElasticSearchBulkWriter writer = new ElasticSearchBulkWriter(new OkHttpClient(), es_index_url, 3,
+                1024 * 1024, 60 * 1000)) {
+            CompletableFuture<Void> one = writer.index("a", doc("{}"), message(FedoraAction.CREATED, "http://example.org/a"));
+            CompletableFuture<Void> two = writer.index("b", doc("{}"), message(FedoraAction.CREATED, "http://example.org/b"));
+            CompletableFuture<Void> three = writer.delete("c", message(FedoraAction.DELETED, "http://example.org/c"));
+
+            one.get(10, TimeUnit.SECONDS);
+            three.get(10, TimeUnit.SECONDS);
+
+            try {
+                two.get(10, TimeUnit.SECONDS);
+                assertFalse(true);
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+                assertTrue(e.getCause().getMessage().contains("http://example.org/b"));
+            }
+        }
+    }
+
+    // Failure of the whole request is reported to every message.
+    @Test
+    public void testRequestFailure() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(500));
+
+        try (ElasticSearchBulkWriter writer = new ElasticSearchBulkWriter(new OkHttpClient(), es_index_url, 1,
+                1024 * 1024, 60 * 1000)) {
+            CompletableFuture<Void> one = writer.index("a", doc("{}"), message(FedoraAction.CREATED, "http://example.org/a"));
+
+            assertTrue(one.isCompletedExceptionally());
+        }
+    }
+
+    // An update action wraps the changed fields.
+    @Test
+    public void testUpdate() throws Exception {
+        server.enqueue(new MockResponse().setBody("{\"errors\": false, \"items\": []}"));
+
+        try (ElasticSearchBulkWriter writer = new ElasticSearchBulkWriter(new OkHttpClient(), es_index_url, 1,
+                1024 * 1024, 60 * 1000)) {
+            writer.update("a", doc("{\"name\":\"moo\"}"), message(FedoraAction.MODIFIED, "http://example.org/a"))
+                    .get(10, TimeUnit.SECONDS);
+
+            String[] lines = server.takeRequest().getBody().readUtf8().split("\n");
+
+            assertEquals(2, lines.length);
+            assertEquals("a", new JSONObject(lines[0]).getJSONObject("update").getString("_id"));
+            assertEquals("moo", new JSONObject(lines[1]).getJSONObject("doc").getString("name"));
+        }
+    }
+
+    // Actions carry the message timestamp as an external version and a conflict fails with 409.
+    @Test
+    public void testExternalVersion() throws Exception {
+        server.enqueue(new MockResponse().setBody("{\"errors\": true, \"items\": ["
+                + "{\"index\": {\"status\": 409, \"error\": \"version conflict\"}}]}"));
+
+        try (ElasticSearchBulkWriter writer = new ElasticSearchBulkWriter(new OkHttpClient(), es_index_url, 1,
+                1024 * 1024, 60 * 1000)) {
+            writer.setExternalVersioning(true);
+
+            FedoraMessage m = message(FedoraAction.MODIFIED, "http://example.org/a");
+            m.setTimestamp(1000);
+
+            try {
+                writer.index("a", doc("{\"name\":\"moo\"}"), m).get(10, TimeUnit.SECONDS);
+                fail("Conflict not reported");
+            } catch (ExecutionException e) {
+                assertEquals(409, ElasticSearchException.class.cast(e.getCause()).getStatus());
+            }
+
+            JSONObject meta = new JSONObject(server.takeRequest().getBody().readUtf8().split("\n")[0])
+                    .getJSONObject("index");
+
+            assertEquals(1000, meta.getLong("version"));
+            assertEquals("external_gte", meta.getString("version_type"));
+        }
+    }
+}
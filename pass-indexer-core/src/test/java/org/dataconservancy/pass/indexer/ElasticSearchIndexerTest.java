@@ -4,8 +4,18 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.JSONObject;
 import org.junit.After;
@@ -13,6 +23,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
@@ -175,4 +186,360 @@ public class ElasticSearchIndexerTest {
         
         assertTrue(delete.getRequestUrl().toString().startsWith(es_index_url.toString()));
     }
+    
+    @Test
+    public void testBulkCreateMessage() throws Exception {
+        indexer.enableBulk(1, 1024 * 1024, 1000);
+
+        String fedora_res_uri = server.url("/fcrepo/cow/moo").toString();
+
+        JSONObject res_json = new JSONObject();
+        res_json.put("@id", fedora_res_uri);
+        res_json.put("name", "moo");
+
+        // GET for Fedora resource
+        server.enqueue(new MockResponse().setBody(res_json.toString()));
+
+        // POST to Elasticsearch bulk endpoint
+        server.enqueue(new MockResponse().setBody("{\"errors\": false, \"items\": []}"));
+
+        FedoraMessage m = new FedoraMessage();
+        m.setAction(FedoraAction.CREATED);
+        m.setResourceURI(fedora_res_uri);
+
+        indexer.handle(m);
+
+        // Check the requests
+
+        assertEquals("GET", server.takeRequest().getMethod());
+
+        RecordedRequest post = server.takeRequest();
+
+        assertEquals("POST", post.getMethod());
+        assertTrue(post.getRequestUrl().toString().startsWith(es_index_url.toString() + "_doc/_bulk"));
+
+        String[] lines = post.getBody().readUtf8().split("\n");
+        
+        assertEquals(2, lines.length);
+        assertEquals(res_json.get("@id"), new JSONObject(lines[1]).get("@id"));
+    }
+
+    // Fedora requests for different messages are in flight at the same time.
+    @Test
+    public void testSubmitOverlaps() throws Exception {
+        AtomicInteger fedora_requests = new AtomicInteger();
+        AtomicInteger max_fedora_requests = new AtomicInteger();
+
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                if (!request.getMethod().equals("GET")) {
+                    return new MockResponse().setBody("{}");
+                }
+
+                int n = fedora_requests.incrementAndGet();
+                max_fedora_requests.accumulateAndGet(n, Math::max);
+                Thread.sleep(500);
+                fedora_requests.decrementAndGet();
+
+                return new MockResponse().setBody(new JSONObject().put("@id", request.getPath()).toString());
+            }
+        });
+
+        indexer.setMaxInFlight(4);
+
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+
+        for (int i = 0; i < 4; i++) {
+            FedoraMessage m = new FedoraMessage();
+            m.setAction(FedoraAction.MODIFIED);
+            m.setResourceURI(server.url("/fcrepo/cow/" + i).toString());
+
+            results.add(indexer.submit(m));
+        }
+
+        for (CompletableFuture<Void> result : results) {
+            result.get(10, TimeUnit.SECONDS);
+        }
+
+        assertTrue(max_fedora_requests.get() > 1);
+    }
+
+    // An overloaded Elasticsearch is retried starting with a new Fedora request.
+    @Test
+    public void testRetryOverload() throws Exception {
+        String fedora_res_uri = server.url("/fcrepo/cow/moo").toString();
+        String res = new JSONObject().put("@id", fedora_res_uri).put("name", "moo").toString();
+
+        server.enqueue(new MockResponse().setBody(res));
+        server.enqueue(new MockResponse().setResponseCode(429).setBody("{}"));
+        server.enqueue(new MockResponse().setBody(res));
+        server.enqueue(new MockResponse().setBody("{}"));
+
+        FedoraMessage m = new FedoraMessage();
+        m.setAction(FedoraAction.MODIFIED);
+        m.setResourceURI(fedora_res_uri);
+
+        IndexerMetrics metrics = new IndexerMetrics();
+
+        indexer.setMetrics(metrics);
+        indexer.setRetry(3, 1, 10);
+        indexer.submit(m).get(10, TimeUnit.SECONDS);
+
+        assertEquals("GET", server.takeRequest().getMethod());
+        assertEquals("POST", server.takeRequest().getMethod());
+        assertEquals("GET", server.takeRequest().getMethod());
+        assertEquals("POST", server.takeRequest().getMethod());
+
+        StringWriter out = new StringWriter();
+        metrics.write(out);
+
+        assertTrue(out.toString().contains("pass_indexer_es_retries_total{status=\"429\"} 1\n"));
+    }
+
+    // A document Elasticsearch refuses is not retried.
+    @Test
+    public void testPermanentFailure() throws Exception {
+        String fedora_res_uri = server.url("/fcrepo/cow/moo").toString();
+
+        server.enqueue(new MockResponse().setBody(new JSONObject().put("@id", fedora_res_uri).toString()));
+        server.enqueue(new MockResponse().setResponseCode(400).setBody("{}"));
+
+        FedoraMessage m = new FedoraMessage();
+        m.setAction(FedoraAction.MODIFIED);
+        m.setResourceURI(fedora_res_uri);
+
+        indexer.setRetry(3, 1, 10);
+
+        try {
+            indexer.submit(m).get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ElasticSearchException);
+            assertEquals(400, ((ElasticSearchException) e.getCause()).getStatus());
+        }
+
+        assertEquals(2, server.getRequestCount() - 2);
+    }
+
+    // A resource which is not modified since it was written is neither transferred nor written again.
+    @Test
+    public void testNotModified() throws Exception {
+        String fedora_res_uri = server.url("/fcrepo/cow/moo").toString();
+        String res = new JSONObject().put("@id", fedora_res_uri).put("name", "moo").toString();
+
+        server.enqueue(new MockResponse().setBody(res).setHeader("ETag", "W/\"1\""));
+        server.enqueue(new MockResponse().setBody("{}"));
+        server.enqueue(new MockResponse().setResponseCode(304));
+
+        FedoraMessage m = new FedoraMessage();
+        m.setAction(FedoraAction.MODIFIED);
+        m.setResourceURI(fedora_res_uri);
+
+        indexer.setValidatorCacheSize(10);
+        indexer.handle(m);
+        indexer.handle(m);
+
+        RecordedRequest first = server.takeRequest();
+
+        assertEquals(null, first.getHeader("If-None-Match"));
+        assertEquals("POST", server.takeRequest().getMethod());
+
+        RecordedRequest second = server.takeRequest();
+
+        assertEquals("GET", second.getMethod());
+        assertEquals("W/\"1\"", second.getHeader("If-None-Match"));
+        assertEquals(5, server.getRequestCount());
+    }
+
+    // A document identical to the one last written is not written again.
+    @Test
+    public void testUnchanged() throws Exception {
+        String fedora_res_uri = server.url("/fcrepo/cow/moo").toString();
+        String res = new JSONObject().put("@id", fedora_res_uri).put("name", "moo").toString();
+
+        server.enqueue(new MockResponse().setBody(res));
+        server.enqueue(new MockResponse().setBody("{}"));
+        server.enqueue(new MockResponse().setBody(res));
+
+        FedoraMessage m = new FedoraMessage();
+        m.setAction(FedoraAction.MODIFIED);
+        m.setResourceURI(fedora_res_uri);
+
+        Path file = Files.createTempFile("fingerprints", ".dat");
+        Files.delete(file);
+
+        try (DocumentFingerprintStore store = new DocumentFingerprintStore(file, 16)) {
+            indexer.setFingerprintStore(store);
+            indexer.handle(m);
+            indexer.handle(m);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+
+        assertEquals("GET", server.takeRequest().getMethod());
+        assertEquals("POST", server.takeRequest().getMethod());
+        assertEquals("GET", server.takeRequest().getMethod());
+        assertEquals(5, server.getRequestCount());
+    }
+
+    // Fingerprints are rebuilt by scrolling through the index.
+    @Test
+    public void testRebuildFingerprints() throws Exception {
+        JSONObject source = new JSONObject().put("@id", "http://example.org/a").put("name", "moo");
+
+        server.enqueue(new MockResponse().setBody("{\"_scroll_id\": \"s1\", \"hits\": {\"hits\": [{\"_id\": \"a\", \"_source\": "
+                + source + "}]}}"));
+        server.enqueue(new MockResponse().setBody("{\"_scroll_id\": \"s1\", \"hits\": {\"hits\": []}}"));
+        server.enqueue(new MockResponse().setBody("{\"succeeded\": true}"));
+
+        Path file = Files.createTempFile("fingerprints", ".dat");
+        Files.delete(file);
+
+        try (DocumentFingerprintStore store = new DocumentFingerprintStore(file, 16)) {
+            indexer.setFingerprintStore(store);
+
+            assertEquals(1, indexer.rebuildFingerprints());
+            assertTrue(store.contains("a", DocumentFingerprintStore.fingerprint(source)));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+
+        assertEquals("/es/test/_search?scroll=1m&size=1000", server.takeRequest().getPath());
+
+        RecordedRequest scroll = server.takeRequest();
+
+        assertEquals("/es/_search/scroll", scroll.getPath());
+        assertEquals("s1", new JSONObject(scroll.getBody().readUtf8()).getString("scroll_id"));
+
+
+        RecordedRequest clear = server.takeRequest();
+
+        assertEquals("DELETE", clear.getMethod());
+        assertEquals("/es/_search/scroll", clear.getPath());
+        assertEquals("s1", new JSONObject(clear.getBody().readUtf8()).getJSONArray("scroll_id").getString(0));
+    }
+
+    // Only changed fields are sent once the document is known and a missing document is written whole.
+    @Test
+    public void testPartialUpdate() throws Exception {
+        String fedora_res_uri = server.url("/fcrepo/cow/moo").toString();
+        JSONObject res = new JSONObject().put("@id", fedora_res_uri).put("name", "moo").put("healthy", true);
+
+        server.enqueue(new MockResponse().setBody(res.toString()));
+        server.enqueue(new MockResponse().setBody("{}"));
+        server.enqueue(new MockResponse().setBody(res.put("name", "cow").toString()));
+        server.enqueue(new MockResponse().setBody("{}"));
+        server.enqueue(new MockResponse().setBody(res.put("name", "bull").toString()));
+        server.enqueue(new MockResponse().setResponseCode(404).setBody("{}"));
+        server.enqueue(new MockResponse().setBody("{}"));
+
+        FedoraMessage m = new FedoraMessage();
+        m.setAction(FedoraAction.MODIFIED);
+        m.setResourceURI(fedora_res_uri);
+
+        indexer.setPartialUpdateCacheSize(10);
+        indexer.handle(m);
+        indexer.handle(m);
+        indexer.handle(m);
+
+        server.takeRequest();
+        assertFalse(server.takeRequest().getPath().contains("_update"));
+        server.takeRequest();
+
+        RecordedRequest update = server.takeRequest();
+
+        assertTrue(update.getPath().endsWith("/_update"));
+        assertEquals("{\"doc\":{\"name\":\"cow\"}}", update.getBody().readUtf8());
+
+        server.takeRequest();
+        assertTrue(server.takeRequest().getPath().endsWith("/_update"));
+
+        RecordedRequest whole = server.takeRequest();
+
+        assertFalse(whole.getPath().contains("_update"));
+        assertEquals("bull", new JSONObject(whole.getBody().readUtf8()).getString("name"));
+    }
+
+    // Writes carry the event time as a version and a conflict with a newer version is not a failure.
+    @Test
+    public void testExternalVersioning() throws Exception {
+        String fedora_res_uri = server.url("/fcrepo/cow/moo").toString();
+        String res = new JSONObject().put("@id", fedora_res_uri).put("name", "moo").toString();
+
+        server.enqueue(new MockResponse().setBody("{\"acknowledged\": true}"));
+        server.enqueue(new MockResponse().setBody(res));
+        server.enqueue(new MockResponse().setResponseCode(409).setBody("{\"error\": \"version_conflict_engine_exception\"}"));
+        server.enqueue(new MockResponse().setResponseCode(409).setBody("{}"));
+
+        IndexerMetrics metrics = new IndexerMetrics();
+        indexer.setMetrics(metrics);
+        indexer.setExternalVersioning(true, "1h");
+
+        FedoraMessage m = new FedoraMessage();
+        m.setAction(FedoraAction.MODIFIED);
+        m.setResourceURI(fedora_res_uri);
+        m.setTimestamp(1000);
+
+        indexer.handle(m);
+
+        m.setAction(FedoraAction.DELETED);
+        indexer.handle(m);
+
+        RecordedRequest settings = server.takeRequest();
+
+        assertTrue(settings.getPath().endsWith("/_settings"));
+        assertEquals("1h", new JSONObject(settings.getBody().readUtf8()).getJSONObject("index").getString("gc_deletes"));
+
+        server.takeRequest();
+
+        assertTrue(server.takeRequest().getPath().endsWith("&version=1000&version_type=external_gte"));
+
+        RecordedRequest delete = server.takeRequest();
+
+        assertEquals("DELETE", delete.getMethod());
+        assertTrue(delete.getPath().endsWith("&version=1000&version_type=external_gte"));
+
+        StringWriter out = new StringWriter();
+        metrics.write(out);
+
+        assertTrue(out.toString().contains("pass_indexer_messages_total{outcome=\"stale\"} 2\n"));
+    }
+
+    // A field added to the mapping is kept in documents after the mapping is refreshed.
+    @Test
+    public void testRefreshMapping() throws Exception {
+        JSONObject config = ElasticSearchIndexer.load_index_configuration(null);
+
+        server.enqueue(new MockResponse().setBody(new JSONObject().put("test", config).toString()));
+
+        assertFalse(indexer.refreshMapping());
+
+        config.getJSONObject("mappings").getJSONObject("_doc").getJSONObject("properties").put("healthy",
+                new JSONObject().put("type", "boolean"));
+
+        server.enqueue(new MockResponse().setBody(new JSONObject().put("test", config).toString()));
+
+        assertTrue(indexer.refreshMapping());
+
+        String fedora_res_uri = server.url("/fcrepo/cow/moo").toString();
+
+        server.enqueue(new MockResponse().setBody(
+                new JSONObject().put("@id", fedora_res_uri).put("healthy", "true").put("name", "moo").toString()));
+        server.enqueue(new MockResponse().setBody("{}"));
+
+        FedoraMessage m = new FedoraMessage();
+        m.setAction(FedoraAction.MODIFIED);
+        m.setResourceURI(fedora_res_uri);
+
+        indexer.handle(m);
+
+        server.takeRequest();
+        server.takeRequest();
+        server.takeRequest();
+
+        JSONObject doc = new JSONObject(server.takeRequest().getBody().readUtf8());
+
+        assertEquals(true, doc.get("healthy"));
+    }
 }
@@ -1,10 +1,18 @@
 package org.dataconservancy.pass.indexer;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Paths;
+
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
 
 import org.apache.activemq.junit.EmbeddedActiveMQBroker;
 import org.json.JSONObject;
@@ -22,35 +30,46 @@ public class FedoraIndexerServiceTest {
     private HttpUrl es_index_url;
     private FedoraIndexerService service;
     private String queue;
+    private EmbeddedActiveMQBroker broker;
     
     
     @Before
     public void setup() throws Exception {
-        EmbeddedActiveMQBroker broker = new EmbeddedActiveMQBroker();
+        broker = new EmbeddedActiveMQBroker();
 
         server = new MockWebServer();
         
+        es_index_url = server.url("/es/test/");
+        queue = "fedora";
+        service = start_service(null);
+    }
+
+    private FedoraIndexerService start_service(String error_queue) throws Exception {
         // GET for Elasticsearch index config
         server.enqueue(new MockResponse().setResponseCode(404));
         
         // PUT for Elasticsearch index config
         server.enqueue(new MockResponse().setBody("{}"));
         
-        es_index_url = server.url("/es/test/");
-        queue = "fedora";
-        service = new FedoraIndexerService();
-        service.setAllowedTypePrefix("http://example.org/");
-        service.setElasticsearchIndexUrl(es_index_url.toString());
-        service.setFedoraUser("moo");
-        service.setFedoraPass("moo");
-        service.setJmsConnectionFactory(broker.createConnectionFactory());
-        service.setJmsQueue(queue);
+        FedoraIndexerService result = new FedoraIndexerService();
+        result.setAllowedTypePrefix("http://example.org/");
+        result.setElasticsearchIndexUrl(es_index_url.toString());
+        result.setFedoraUser("moo");
+        result.setFedoraPass("moo");
+        result.setJmsConnectionFactory(broker.createConnectionFactory());
+        result.setJmsQueue(queue);
+
+        if (error_queue != null) {
+            result.setErrorQueue(error_queue, 3);
+        }
         
-        service.start();
+        result.start();
         
         // Drain index config requests
         server.takeRequest();
         server.takeRequest();
+
+        return result;
     }
     
     @After
@@ -136,4 +155,88 @@ public class FedoraIndexerServiceTest {
         assertEquals("application/json; charset=utf-8", post.getHeader("Content-Type"));
         assertTrue(post.getRequestUrl().toString().startsWith(es_index_url.toString()));
     }
+
+    private Message receive_error() throws Exception {
+        try (JmsClient client = new JmsClient(broker.createConnectionFactory())) {
+            Session session = client.getSessionSupplier().get();
+
+            try (MessageConsumer consumer = session.createConsumer(session.createQueue("fedora.errors"))) {
+                return consumer.receive(10 * 1000);
+            }
+        }
+    }
+
+    // A malformed message is sent to the error queue with a description of the failure.
+    @Test
+    public void testMalformedMessage() throws Exception {
+        service.close();
+        service = start_service("fedora.errors");
+
+        JmsClient jms_client = service.getJmsClient();
+        TextMessage msg = jms_client.getSessionSupplier().get().createTextMessage("{\"id\": ");
+        msg.setStringProperty("moo", "cow");
+
+        jms_client.write(queue, msg);
+
+        Message error = receive_error();
+
+        assertNotNull(error);
+        assertEquals("{\"id\": ", ((TextMessage) error).getText());
+        assertEquals("cow", error.getStringProperty("moo"));
+        assertEquals("org.json.JSONException", error.getStringProperty(FedoraIndexerService.ERROR_EXCEPTION_PROPERTY));
+        assertTrue(error.getBooleanProperty(FedoraIndexerService.ERROR_PERMANENT_PROPERTY));
+        assertEquals(1, error.getIntProperty(FedoraIndexerService.ERROR_DELIVERY_COUNT_PROPERTY));
+        assertEquals(queue, error.getStringProperty(FedoraIndexerService.ERROR_QUEUE_PROPERTY));
+    }
+
+    // Closing message groups can reorder messages, so it is only allowed with external versions.
+    @Test(expected = IllegalArgumentException.class)
+    public void testRebalanceRequiresVersioning() throws Exception {
+        try (FedoraIndexerService grouped = new FedoraIndexerService()) {
+            grouped.setMessageGroups("fedora.grouped", 4, 1000);
+            grouped.start();
+        }
+    }
+
+    // Other instances sharing the group queue write documents the fingerprint store never sees.
+    @Test(expected = IllegalArgumentException.class)
+    public void testFingerprintsRejectGroups() throws Exception {
+        try (FedoraIndexerService grouped = new FedoraIndexerService()) {
+            grouped.setMessageGroups("fedora.grouped", 4, 0);
+            grouped.setFingerprintStore(Paths.get("fingerprints"), 16);
+            grouped.start();
+        }
+    }
+
+    // Bulk requests could never fill if fewer messages were in flight than fit in one.
+    @Test
+    public void testBulkRaisesMaxInFlight() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(404));
+        server.enqueue(new MockResponse().setBody("{}"));
+
+        try (FedoraIndexerService bulk = new FedoraIndexerService()) {
+            bulk.setAllowedTypePrefix("http://example.org/");
+            bulk.setElasticsearchIndexUrl(es_index_url.toString());
+            bulk.setJmsConnectionFactory(broker.createConnectionFactory());
+            bulk.setJmsQueue(queue);
+            bulk.setBulkMaxActions(10);
+            bulk.setMaxInFlight(4);
+            bulk.start();
+
+            StringWriter out = new StringWriter();
+            bulk.getMetrics().write(out);
+
+            assertTrue(out.toString()
+                    .contains("pass_indexer_es_throttle_limit{index=\"" + es_index_url + "\"} 20\n"));
+        }
+    }
+
+    @Test
+    public void testIsPermanent() {
+        assertTrue(FedoraIndexerService.is_permanent(new FedoraException("gone", 410)));
+        assertFalse(FedoraIndexerService.is_permanent(new FedoraException("unavailable", 503)));
+        assertTrue(FedoraIndexerService.is_permanent(new ElasticSearchException("mapping", 400)));
+        assertFalse(FedoraIndexerService.is_permanent(new ElasticSearchException("overloaded", 429)));
+        assertFalse(FedoraIndexerService.is_permanent(new IOException("connection refused")));
+    }
 }
@@ -0,0 +1,202 @@
+package org.dataconservancy.pass.indexer;
+
+import static org.dataconservancy.pass.indexer.TestMessages.message;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FedoraMessageCoalescerTest {
+    private ExecutorService executor;
+    private List<FedoraMessage> handled;
+
+    @Before
+    public void setup() {
+        executor = Executors.newCachedThreadPool();
+        handled = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    @After
+    public void cleanup() {
+        executor.shutdownNow();
+    }
+
+    private CompletableFuture<Void> record(FedoraMessage m) {
+        handled.add(m);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    // Handle messages concurrently, each starting a little after the previous one.
+    private List<Future<?>> handle_all(FedoraMessageHandler coalescer, FedoraMessage... msgs) throws Exception {
+        List<Future<?>> results = new ArrayList<>();
+
+        for (FedoraMessage m : msgs) {
+            results.add(executor.submit(() -> {
+                coalescer.handle(m);
+                return null;
+            }));
+
+            Thread.sleep(20);
+        }
+
+        return results;
+    }
+
+    @Test
+    public void testModificationsCollapsed() throws Exception {
+        FedoraMessageCoalescer coalescer = new FedoraMessageCoalescer(this::record, 500);
+
+        for (Future<?> f : handle_all(coalescer, message(FedoraAction.MODIFIED, "http://example.org/a"),
+                message(FedoraAction.MODIFIED, "http://example.org/a"),
+                message(FedoraAction.MODIFIED, "http://example.org/b"))) {
+            f.get(10, TimeUnit.SECONDS);
+        }
+
+        assertEquals(2, handled.size());
+        assertEquals(3, coalescer.getReceivedCount());
+        assertEquals(1, coalescer.getAbsorbedCount());
+    }
+
+    @Test
+    public void testCreateModifyStaysCreate() throws Exception {
+        FedoraMessageCoalescer coalescer = new FedoraMessageCoalescer(this::record, 500);
+
+        for (Future<?> f : handle_all(coalescer, message(FedoraAction.CREATED, "http://example.org/a"),
+                message(FedoraAction.MODIFIED, "http://example.org/a"))) {
+            f.get(10, TimeUnit.SECONDS);
+        }
+
+        assertEquals(1, handled.size());
+        assertEquals(FedoraAction.CREATED, handled.get(0).getAction());
+    }
+
+    @Test
+    public void testModifyDeleteIsDelete() throws Exception {
+        FedoraMessageCoalescer coalescer = new FedoraMessageCoalescer(this::record, 500);
+
+        for (Future<?> f : handle_all(coalescer, message(FedoraAction.MODIFIED, "http://example.org/a"),
+                message(FedoraAction.DELETED, "http://example.org/a"))) {
+            f.get(10, TimeUnit.SECONDS);
+        }
+
+        assertEquals(1, handled.size());
+        assertEquals(FedoraAction.DELETED, handled.get(0).getAction());
+    }
+
+    @Test
+    public void testCreateDeleteCancelled() throws Exception {
+        FedoraMessageCoalescer coalescer = new FedoraMessageCoalescer(this::record, 500);
+        IndexerMetrics metrics = new IndexerMetrics();
+        coalescer.setMetrics(metrics);
+
+        for (Future<?> f : handle_all(coalescer, message(FedoraAction.CREATED, "http://example.org/a"),
+                message(FedoraAction.MODIFIED, "http://example.org/a"),
+                message(FedoraAction.DELETED, "http://example.org/a"))) {
+            f.get(10, TimeUnit.SECONDS);
+        }
+
+        assertEquals(0, handled.size());
+        assertEquals(2, coalescer.getAbsorbedCount());
+        assertEquals(1, coalescer.getCancelledCount());
+
+        StringWriter out = new StringWriter();
+        metrics.write(out);
+
+        assertTrue(out.toString().contains("pass_indexer_coalesced_total{result=\"absorbed\"} 2\n"));
+        assertTrue(out.toString().contains("pass_indexer_coalesced_total{result=\"cancelled\"} 1\n"));
+    }
+
+    // Every merged message sees the failure.
+    @Test
+    public void testFailureReportedToAll() throws Exception {
+        FedoraMessageCoalescer coalescer = new FedoraMessageCoalescer(m -> Futures.failed(new IOException("fail")),
+                500);
+
+        int failures = 0;
+
+        for (Future<?> f : handle_all(coalescer, message(FedoraAction.MODIFIED, "http://example.org/a"),
+                message(FedoraAction.MODIFIED, "http://example.org/a"))) {
+            try {
+                f.get(10, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                assertTrue(e.getCause() instanceof IOException);
+                failures++;
+            }
+        }
+
+        assertEquals(2, failures);
+    }
+
+    // Messages which are not waited on are merged.
+    @Test
+    public void testSubmitWithoutWaiting() throws Exception {
+        FedoraMessageCoalescer coalescer = new FedoraMessageCoalescer(this::record, 200);
+
+        CompletableFuture<Void> one = coalescer.submit(message(FedoraAction.MODIFIED, "http://example.org/a"));
+        CompletableFuture<Void> two = coalescer.submit(message(FedoraAction.DELETED, "http://example.org/a"));
+
+        one.get(10, TimeUnit.SECONDS);
+        two.get(10, TimeUnit.SECONDS);
+
+        assertEquals(1, handled.size());
+        assertEquals(FedoraAction.DELETED, handled.get(0).getAction());
+    }
+
+    // A message after the window closes is handled on its own.
+    @Test
+    public void testWindowCloses() throws Exception {
+        FedoraMessageCoalescer coalescer = new FedoraMessageCoalescer(this::record, 50);
+
+        coalescer.handle(message(FedoraAction.MODIFIED, "http://example.org/a"));
+        coalescer.handle(message(FedoraAction.MODIFIED, "http://example.org/a"));
+
+        assertEquals(2, handled.size());
+        assertEquals(0, coalescer.getAbsorbedCount());
+    }
+
+    // Windows close on time while a message is waiting to be passed on to a blocked handler.
+    @Test
+    public void testWindowClosesWhileHandlerBlocked() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+
+        FedoraMessageCoalescer coalescer = new FedoraMessageCoalescer(m -> {
+            if (m.getResourceURI().endsWith("a")) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            return record(m);
+        }, 50);
+
+        CompletableFuture<Void> a = coalescer.submit(message(FedoraAction.MODIFIED, "http://example.org/a"));
+        Thread.sleep(100);
+
+        CompletableFuture<Void> b1 = coalescer.submit(message(FedoraAction.MODIFIED, "http://example.org/b"));
+        Thread.sleep(200);
+        CompletableFuture<Void> b2 = coalescer.submit(message(FedoraAction.MODIFIED, "http://example.org/b"));
+
+        release.countDown();
+
+        CompletableFuture.allOf(a, b1, b2).get(10, TimeUnit.SECONDS);
+
+        assertEquals(3, handled.size());
+        assertEquals(0, coalescer.getAbsorbedCount());
+    }
+}
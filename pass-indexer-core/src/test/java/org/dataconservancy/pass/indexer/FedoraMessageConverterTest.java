@@ -1,11 +1,13 @@
 package org.dataconservancy.pass.indexer;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
+import org.json.JSONException;
 import org.junit.Test;
 
 public class FedoraMessageConverterTest {
@@ -167,6 +169,7 @@ public class FedoraMessageConverterTest {
         FedoraMessage m = FedoraMessageConverter.convert(jms_text_msg);
         
         assertEquals(FedoraAction.MODIFIED, m.getAction());
+        assertEquals(1523368977812L, m.getTimestamp());
         assertEquals("http://fcrepo:8080/fcrepo/rest/submissions/7f/cc/6f/c5/7fcc6fc5-10c8-476d-b537-cf13f20d9be7", m.getResourceURI());
         
         String[] expected_types = new String[] {
@@ -262,4 +265,50 @@ public class FedoraMessageConverterTest {
         
         assertEquals(to_set(expected_types), to_set(m.getResourceTypes()));
     }
+
+    private static final String SIMPLE_MSG = "{\"id\": \"http://fcrepo:8080/fcrepo/rest/grants/1\", " +
+            "\"isPartOf\": \"http://fcrepo:8080/fcrepo/rest\", " +
+            "\"type\": [\"http://www.w3.org/ns/ldp#Container\", \"http://example.org/pass/Grant\"], " +
+            "\"wasGeneratedBy\": {\"identifier\": \"urn:uuid:1\", " +
+            "\"type\": [\"http://fedora.info/definitions/v4/event#ResourceModification\"]}, " +
+            "\"@context\": {\"type\": \"@type\"}}";
+
+    @Test
+    public void testConvertMatchingPrefix() {
+        FedoraMessage m = FedoraMessageConverter.convert(SIMPLE_MSG, "http://example.org/pass/");
+
+        assertEquals(FedoraAction.MODIFIED, m.getAction());
+        assertEquals("http://fcrepo:8080/fcrepo/rest/grants/1", m.getResourceURI());
+        assertEquals(to_set("http://www.w3.org/ns/ldp#Container", "http://example.org/pass/Grant"),
+                to_set(m.getResourceTypes()));
+    }
+
+    // Conversion stops once the types are known not to match, so malformed content after them does not matter.
+    @Test
+    public void testConvertOtherPrefix() {
+        assertNull(FedoraMessageConverter.convert(SIMPLE_MSG, "http://example.org/other/"));
+        assertNull(FedoraMessageConverter.convert("{\"type\": [\"http://example.org/cow\"], \"id\": ",
+                "http://example.org/other/"));
+    }
+
+    // An event time may have an offset instead of Z.
+    @Test
+    public void testConvertOffsetTime() {
+        FedoraMessage m = FedoraMessageConverter.convert(SIMPLE_MSG.replace("\"identifier\"",
+                "\"atTime\": \"2018-04-10T10:02:57.812-04:00\", \"identifier\""));
+
+        assertEquals(1523368977812L, m.getTimestamp());
+        assertEquals(m.getTimestamp(), FedoraMessageConverter.convert(SIMPLE_MSG.replace("\"identifier\"",
+                "\"atTime\": \"2018-04-10T14:02:57.812+00:00\", \"identifier\"")).getTimestamp());
+    }
+
+    @Test(expected = JSONException.class)
+    public void testConvertMalformed() {
+        FedoraMessageConverter.convert("{\"id\": \"http://example.org/a\", \"type\": [");
+    }
+
+    @Test(expected = JSONException.class)
+    public void testConvertMissingEvent() {
+        FedoraMessageConverter.convert("{\"id\": \"http://example.org/a\", \"type\": []}");
+    }
 }
@@ -0,0 +1,97 @@
+package org.dataconservancy.pass.indexer;
+
+import static org.dataconservancy.pass.indexer.TestMessages.message;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class FedoraMessageDispatcherTest {
+    // Message is handled on another thread which holds a permit until the result is known.
+    @Test
+    public void testDispatch() throws Exception {
+        CompletableFuture<Void> handled = new CompletableFuture<>();
+        Thread caller = Thread.currentThread();
+
+        FedoraMessageHandler handler = m -> {
+            assertNotEquals(caller, Thread.currentThread());
+            return handled;
+        };
+
+        try (FedoraMessageDispatcher dispatcher = new FedoraMessageDispatcher(handler, Executors.newCachedThreadPool(),
+                2)) {
+            CompletableFuture<Void> result = dispatcher.submit(message(FedoraAction.MODIFIED, "http://example.org/a"));
+
+            Thread.sleep(100);
+
+            assertFalse(result.isDone());
+            assertEquals(1, dispatcher.getAvailablePermits(handler));
+
+            handled.complete(null);
+            result.get(1, TimeUnit.SECONDS);
+
+            assertEquals(2, dispatcher.getAvailablePermits(handler));
+        }
+    }
+
+    // A routed type whose handler is stuck uses up only its own permits.
+    @Test
+    public void testPermitsPerTarget() throws Exception {
+        CompletableFuture<Void> stuck = new CompletableFuture<>();
+        FedoraMessageHandler grants = m -> stuck;
+        FedoraMessageHandler others = m -> CompletableFuture.completedFuture(null);
+
+        FedoraMessageRouter router = new FedoraMessageRouter("http://example.org/pass/", others);
+        router.addRoute("Grant", grants);
+
+        try (FedoraMessageDispatcher dispatcher = new FedoraMessageDispatcher(router, Executors.newCachedThreadPool(),
+                1)) {
+            dispatcher.submit(message(FedoraAction.MODIFIED, "http://example.org/a", "http://example.org/pass/Grant"));
+
+            assertEquals(0, dispatcher.getAvailablePermits(grants));
+
+            dispatcher.submit(message(FedoraAction.MODIFIED, "http://example.org/b", "http://example.org/pass/User"))
+                    .get(1, TimeUnit.SECONDS);
+
+            assertEquals(1, dispatcher.getAvailablePermits(others));
+
+            stuck.complete(null);
+        }
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        try (FedoraMessageDispatcher dispatcher = new FedoraMessageDispatcher(
+                m -> Futures.failed(new FedoraException("gone", 404)), Executors.newCachedThreadPool(), 1)) {
+            dispatcher.submit(message(FedoraAction.MODIFIED, "http://example.org/a")).get(1, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof FedoraException);
+            return;
+        }
+
+        throw new AssertionError("Failure not reported");
+    }
+
+    // Null when running on a Java without virtual threads.
+    @Test
+    public void testVirtualThreadExecutor() throws Exception {
+        boolean available;
+
+        try {
+            Thread.class.getMethod("ofVirtual");
+            available = true;
+        } catch (NoSuchMethodException e) {
+            available = false;
+        }
+
+        assertEquals(available, FedoraMessageDispatcher.newVirtualThreadExecutor() != null);
+    }
+}
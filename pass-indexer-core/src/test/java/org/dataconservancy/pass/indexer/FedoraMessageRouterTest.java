@@ -0,0 +1,55 @@
+package org.dataconservancy.pass.indexer;
+
+import static org.dataconservancy.pass.indexer.TestMessages.message;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class FedoraMessageRouterTest {
+    private static final String PREFIX = "http://example.org/pass/";
+
+    private List<String> handled;
+    private FedoraMessageRouter router;
+
+    @Before
+    public void setup() {
+        handled = Collections.synchronizedList(new ArrayList<>());
+        router = new FedoraMessageRouter(PREFIX, handler("default"));
+        router.addRoute("Grant", handler("grant"));
+        router.addRoute("Submission", handler("submission"));
+    }
+
+    private FedoraMessageHandler handler(String name) {
+        return m -> {
+            handled.add(name);
+            return CompletableFuture.completedFuture(null);
+        };
+    }
+
+    private static final String URI = "http://example.org/fcrepo/a";
+
+    // The first type with a route picks the handler.
+    @Test
+    public void testRoute() throws Exception {
+        router.handle(message(FedoraAction.CREATED, URI, "http://www.w3.org/ns/ldp#Container", PREFIX + "Grant"));
+        router.handle(message(FedoraAction.MODIFIED, URI, PREFIX + "Submission"));
+        router.handle(message(FedoraAction.MODIFIED, URI, PREFIX + "Journal"));
+
+        assertEquals(Arrays.asList("grant", "submission", "default"), handled);
+    }
+
+    // A deletion without types goes to every handler.
+    @Test
+    public void testUntypedDelete() throws Exception {
+        router.handle(message(FedoraAction.DELETED, URI));
+
+        assertEquals(Arrays.asList("default", "grant", "submission"), handled);
+    }
+}
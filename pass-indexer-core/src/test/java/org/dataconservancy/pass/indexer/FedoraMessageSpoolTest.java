@@ -0,0 +1,208 @@
+package org.dataconservancy.pass.indexer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FedoraMessageSpoolTest {
+    private Path dir;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("spool");
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path p : files.collect(Collectors.toList())) {
+                Files.delete(p);
+            }
+        }
+
+        Files.delete(dir);
+    }
+
+    private static FedoraMessage message(int i) {
+        FedoraMessage m = TestMessages.message(FedoraAction.MODIFIED, "http://example.org/fcrepo/" + i,
+                "http://example.org/pass/Grant", "http://www.w3.org/ns/ldp#Container");
+        m.setTimestamp(1523368977812L + i);
+        return m;
+    }
+
+    private static void await(FedoraMessageSpool spool) throws InterruptedException {
+        for (int i = 0; i < 100 && spool.getPendingBytes() > 0; i++) {
+            Thread.sleep(50);
+        }
+    }
+
+    // Messages are replayed in order and the journal is compacted when drained, so it can take
+    // more messages over time than fit at once.
+    @Test
+    public void testReplayInOrder() throws Exception {
+        List<FedoraMessage> handled = Collections.synchronizedList(new ArrayList<>());
+        List<FedoraMessage> expected = new ArrayList<>();
+
+        try (FedoraMessageSpool spool = new FedoraMessageSpool(m -> {
+            handled.add(m);
+            return CompletableFuture.completedFuture(null);
+        }, dir, 1024)) {
+            for (int i = 0; i < 100; i++) {
+                expected.add(message(i));
+                spool.submit(message(i)).get();
+            }
+
+            await(spool);
+
+            assertEquals(0, spool.getPendingBytes());
+            assertEquals(100, spool.getHandledCount());
+        }
+
+        assertEquals(expected, handled);
+    }
+
+    // Messages not handled before the journal is closed are replayed when it is opened again.
+    @Test
+    public void testResume() throws Exception {
+        try (FedoraMessageSpool spool = new FedoraMessageSpool(m -> new CompletableFuture<>(), dir, 4096)) {
+            spool.submit(message(1)).get();
+            spool.submit(message(2)).get();
+        }
+
+        List<FedoraMessage> handled = Collections.synchronizedList(new ArrayList<>());
+
+        try (FedoraMessageSpool spool = new FedoraMessageSpool(m -> {
+            handled.add(m);
+            return CompletableFuture.completedFuture(null);
+        }, dir, 4096)) {
+            await(spool);
+        }
+
+        assertEquals(2, handled.size());
+        assertEquals(message(1), handled.get(0));
+        assertEquals(message(2), handled.get(1));
+    }
+
+    // A transient failure is retried and a permanent failure is dropped.
+    @Test
+    public void testFailures() throws Exception {
+        List<FedoraMessage> handled = Collections.synchronizedList(new ArrayList<>());
+
+        try (FedoraMessageSpool spool = new FedoraMessageSpool(m -> {
+            handled.add(m);
+
+            if (m.getResourceURI().endsWith("/1") && handled.size() == 1) {
+                return Futures.failed(new ElasticSearchException("overloaded", 429));
+            } else if (m.getResourceURI().endsWith("/2")) {
+                return Futures.failed(new FedoraException("gone", 410));
+            }
+
+            return CompletableFuture.completedFuture(null);
+        }, dir, 4096)) {
+            spool.setRetryDelay(10);
+            spool.append(message(1));
+            await(spool);
+            spool.append(message(2));
+            await(spool);
+
+            assertEquals(1, spool.getHandledCount());
+            assertEquals(1, spool.getFailedCount());
+        }
+
+        assertEquals(3, handled.size());
+        assertTrue(handled.get(2).getResourceURI().endsWith("/2"));
+    }
+
+    // A transient failure is retried before the later messages about the same resource in the batch again.
+    @Test
+    public void testRetryKeepsOrder() throws Exception {
+        FedoraMessage deleted = message(1);
+        deleted.setAction(FedoraAction.DELETED);
+
+        try (FedoraMessageSpool spool = new FedoraMessageSpool(m -> new CompletableFuture<>(), dir, 4096)) {
+            spool.append(message(1));
+            spool.append(deleted);
+            spool.append(message(2));
+        }
+
+        List<FedoraMessage> handled = Collections.synchronizedList(new ArrayList<>());
+
+        try (FedoraMessageSpool spool = new FedoraMessageSpool(m -> {
+            handled.add(m);
+
+            if (handled.size() == 1) {
+                return Futures.failed(new ElasticSearchException("overloaded", 429));
+            }
+
+            return CompletableFuture.completedFuture(null);
+        }, dir, 4096)) {
+            spool.setRetryDelay(10);
+            await(spool);
+
+            assertEquals(3, spool.getHandledCount());
+        }
+
+        assertEquals(5, handled.size());
+        assertEquals(message(1), handled.get(3));
+        assertEquals(deleted, handled.get(4));
+    }
+
+    // Handled messages in front of the waiting ones are compacted away while the journal is not drained.
+    @Test(timeout = 10000)
+    public void testCompactWhileWaiting() throws Exception {
+        int record;
+
+        try (FedoraMessageSpool spool = new FedoraMessageSpool(m -> new CompletableFuture<>(), dir, 4096)) {
+            spool.append(message(0));
+            record = spool.getPendingBytes();
+        }
+
+        cleanup();
+        setup();
+
+        CompletableFuture<Void> held = new CompletableFuture<>();
+        List<FedoraMessage> handled = Collections.synchronizedList(new ArrayList<>());
+
+        // Room for five records and the terminator
+        try (FedoraMessageSpool spool = new FedoraMessageSpool(m -> {
+            handled.add(m);
+            return m.equals(message(3)) ? held : CompletableFuture.completedFuture(null);
+        }, dir, 5 * record + Integer.BYTES)) {
+            spool.setBatchSize(1);
+
+            for (int i = 0; i < 5; i++) {
+                spool.append(message(i));
+            }
+
+            while (spool.getHandledCount() < 3) {
+                Thread.sleep(10);
+            }
+
+            // Would wait for message 3 to be handled without compaction
+            spool.submit(message(5)).get(5, TimeUnit.SECONDS);
+
+            held.complete(null);
+            await(spool);
+
+            assertEquals(6, spool.getHandledCount());
+        }
+
+        for (int i = 0; i < 6; i++) {
+            assertEquals(message(i), handled.get(i));
+        }
+    }
+}
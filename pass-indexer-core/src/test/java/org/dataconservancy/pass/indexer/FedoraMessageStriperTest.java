@@ -0,0 +1,86 @@
+package org.dataconservancy.pass.indexer;
+
+import static org.dataconservancy.pass.indexer.TestMessages.message;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class FedoraMessageStriperTest {
+    // A message about a resource is not passed on until the previous one about it finishes.
+    @Test
+    public void testOrderedByResource() throws Exception {
+        List<FedoraMessage> handled = Collections.synchronizedList(new ArrayList<>());
+        Map<FedoraMessage, CompletableFuture<Void>> results = new ConcurrentHashMap<>();
+
+        try (FedoraMessageStriper striper = new FedoraMessageStriper(m -> {
+            handled.add(m);
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            results.put(m, result);
+            return result;
+        }, 4)) {
+            FedoraMessage create = message(FedoraAction.CREATED, "http://example.org/a");
+            FedoraMessage modify = message(FedoraAction.MODIFIED, "http://example.org/a");
+
+            CompletableFuture<Void> first = striper.submit(create);
+            CompletableFuture<Void> second = striper.submit(modify);
+
+            Thread.sleep(100);
+
+            assertEquals(Collections.singletonList(create), handled);
+            assertEquals(1, striper.getQueueDepth(FedoraMessageStriper.lane_of("http://example.org/a", 4)));
+
+            results.get(create).completeExceptionally(new IOException());
+
+            Thread.sleep(100);
+
+            assertTrue(first.isCompletedExceptionally());
+            assertEquals(2, handled.size());
+            assertEquals(modify, handled.get(1));
+            assertFalse(second.isDone());
+
+            results.get(modify).complete(null);
+            second.get(1, TimeUnit.SECONDS);
+        }
+    }
+
+    // Messages about different resources do not wait for each other.
+    @Test
+    public void testParallelResources() throws Exception {
+        List<FedoraMessage> handled = Collections.synchronizedList(new ArrayList<>());
+
+        try (FedoraMessageStriper striper = new FedoraMessageStriper(m -> {
+            handled.add(m);
+            return new CompletableFuture<>();
+        }, 2)) {
+            for (int i = 0; i < 10; i++) {
+                striper.submit(message(FedoraAction.MODIFIED, "http://example.org/" + i));
+            }
+
+            Thread.sleep(100);
+
+            assertEquals(10, handled.size());
+        }
+    }
+
+    @Test
+    public void testLanes() {
+        for (int i = 0; i < 100; i++) {
+            String uri = "http://example.org/" + i;
+            int lane = FedoraMessageStriper.lane_of(uri, 3);
+
+            assertTrue(lane >= 0 && lane < 3);
+            assertEquals(lane, FedoraMessageStriper.lane_of(uri, 3));
+        }
+    }
+}
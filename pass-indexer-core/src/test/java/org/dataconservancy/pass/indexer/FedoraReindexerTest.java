@@ -0,0 +1,191 @@
+package org.dataconservancy.pass.indexer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+public class FedoraReindexerTest {
+    private static final String PREFIX = "http://example.org/pass/";
+    private static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+
+    private MockWebServer server;
+    private List<String> fedora_gets;
+    private List<String> es_writes;
+    private Path checkpoint;
+
+    @Before
+    public void setup() throws Exception {
+        server = new MockWebServer();
+        fedora_gets = Collections.synchronizedList(new ArrayList<>());
+        es_writes = Collections.synchronizedList(new ArrayList<>());
+        checkpoint = Files.createTempFile("reindex", ".log");
+        Files.delete(checkpoint);
+
+        // Root container has a typed resource and a container with another typed resource.
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                String path = request.getPath();
+
+                if (path.startsWith("/es/")) {
+                    // Index is created
+                    if (request.getMethod().equals("GET")) {
+                        return new MockResponse().setResponseCode(404);
+                    } else if (request.getMethod().equals("PUT")) {
+                        return new MockResponse().setBody("{}");
+                    }
+
+                    es_writes.add(request.getBody().readUtf8());
+                    return new MockResponse().setBody("{\"errors\": false, \"items\": []}");
+                }
+
+                fedora_gets.add(path);
+
+                JSONObject res = new JSONObject();
+                res.put("@id", server.url(path).toString());
+
+                switch (path) {
+                case "/fcrepo/":
+                    res.put("@type", "http://www.w3.org/ns/ldp#Container");
+                    res.put("contains", new JSONArray(Arrays.asList(server.url("/fcrepo/a").toString(),
+                            server.url("/fcrepo/grants").toString())));
+                    break;
+                case "/fcrepo/grants":
+                    res.put("@type", "http://www.w3.org/ns/ldp#Container");
+                    res.put("contains", new JSONObject().put("@id", server.url("/fcrepo/grants/b").toString()));
+                    break;
+                case "/fcrepo/a":
+                case "/fcrepo/grants/b":
+                    res.put("@type", new JSONArray(Arrays.asList(PREFIX + "Grant", "http://www.w3.org/ns/ldp#Container")));
+                    res.put("awardNumber", "32");
+                    break;
+                default:
+                    return new MockResponse().setResponseCode(404);
+                }
+
+                return new MockResponse().setHeader("Last-Modified", LAST_MODIFIED).setBody(res.toString());
+            }
+        });
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        server.shutdown();
+        Files.deleteIfExists(checkpoint);
+    }
+
+    private FedoraReindexer reindexer(ElasticSearchIndexer es) {
+        FedoraReindexer result = new FedoraReindexer(es, "admin", "admin", PREFIX);
+        result.setParallelism(2);
+        result.setCheckpoint(checkpoint);
+        return result;
+    }
+
+    // Every resource is visited and only resources with an allowed type are indexed.
+    @Test
+    public void testReindex() throws Exception {
+        try (ElasticSearchIndexer es = new ElasticSearchIndexer(server.url("/es/test/").toString(), null, "admin", "admin")) {
+            FedoraReindexer reindexer = reindexer(es);
+
+            reindexer.reindex(server.url("/fcrepo/").toString());
+
+            assertEquals(4, reindexer.getVisitedCount());
+            assertEquals(2, reindexer.getIndexedCount());
+            assertEquals(0, reindexer.getFailedCount());
+            assertEquals(4, fedora_gets.size());
+            assertEquals(2, es_writes.size());
+            assertTrue(es_writes.stream().allMatch(w -> w.contains("\"awardNumber\":\"32\"") && !w.contains("contains")));
+        }
+
+        List<String> lines = Files.readAllLines(checkpoint, StandardCharsets.UTF_8);
+
+        assertEquals(8, lines.size());
+    }
+
+    // A full bulk request is sent without waiting for the latency when the in-flight limit leaves room for it.
+    @Test
+    public void testFullBulk() throws Exception {
+        try (ElasticSearchIndexer es = new ElasticSearchIndexer(server.url("/es/test/").toString(), null, "admin", "admin")) {
+            es.setMaxInFlight(4);
+            es.enableBulk(2, 1024 * 1024, 60 * 1000);
+
+            FedoraReindexer reindexer = reindexer(es);
+            long start = System.currentTimeMillis();
+
+            reindexer.reindex(server.url("/fcrepo/").toString());
+
+            assertTrue(System.currentTimeMillis() - start < 30 * 1000);
+            assertEquals(2, reindexer.getIndexedCount());
+            assertEquals(1, es_writes.size());
+        }
+    }
+
+    // Documents carry the Last-Modified time of their resource as the external version.
+    @Test
+    public void testVersioned() throws Exception {
+        try (ElasticSearchIndexer es = new ElasticSearchIndexer(server.url("/es/test/").toString(), null, "admin", "admin")) {
+            es.enableBulk(2, 1024 * 1024, 100);
+            es.setExternalVersioning(true, null);
+
+            FedoraReindexer reindexer = reindexer(es);
+
+            reindexer.reindex(server.url("/fcrepo/").toString());
+
+            assertEquals(2, reindexer.getIndexedCount());
+            assertTrue(es_writes.stream().allMatch(w -> w.contains("\"version\":1445412480000")));
+        }
+    }
+
+    // A checkpoint resumes with unfinished resources and skips finished ones.
+    @Test
+    public void testResume() throws Exception {
+        Files.write(checkpoint, Arrays.asList("+ " + server.url("/fcrepo/"), "+ " + server.url("/fcrepo/a"),
+                "+ " + server.url("/fcrepo/grants"), "- " + server.url("/fcrepo/a"), "- " + server.url("/fcrepo/")),
+                StandardCharsets.UTF_8);
+
+        try (ElasticSearchIndexer es = new ElasticSearchIndexer(server.url("/es/test/").toString(), null, "admin", "admin")) {
+            FedoraReindexer reindexer = reindexer(es);
+
+            reindexer.reindex(server.url("/fcrepo/").toString());
+
+            assertEquals(2, reindexer.getVisitedCount());
+            assertEquals(1, reindexer.getIndexedCount());
+            assertEquals(Arrays.asList("/fcrepo/grants", "/fcrepo/grants/b"), fedora_gets);
+        }
+    }
+
+    // A resource which cannot be retrieved is left unfinished.
+    @Test
+    public void testFailure() throws Exception {
+        try (ElasticSearchIndexer es = new ElasticSearchIndexer(server.url("/es/test/").toString(), null, "admin", "admin")) {
+            FedoraReindexer reindexer = reindexer(es);
+
+            reindexer.reindex(server.url("/fcrepo/missing").toString());
+
+            assertEquals(0, reindexer.getVisitedCount());
+            assertEquals(1, reindexer.getFailedCount());
+        }
+
+        assertEquals(Arrays.asList("+ " + server.url("/fcrepo/missing")),
+                Files.readAllLines(checkpoint, StandardCharsets.UTF_8));
+    }
+}
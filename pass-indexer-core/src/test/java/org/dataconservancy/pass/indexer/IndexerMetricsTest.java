@@ -0,0 +1,75 @@
+package org.dataconservancy.pass.indexer;
+
+import static org.dataconservancy.pass.indexer.TestMessages.message;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+public class IndexerMetricsTest {
+    private static final String URI = "http://example.org/a";
+
+    private String write(IndexerMetrics metrics) throws IOException {
+        StringWriter out = new StringWriter();
+        metrics.write(out);
+        return out.toString();
+    }
+
+    // Latency is recorded in cumulative buckets labeled by stage, action, and type.
+    @Test
+    public void testHistogram() throws Exception {
+        IndexerMetrics metrics = new IndexerMetrics();
+        metrics.setTypePrefix("http://example.org/pass#");
+
+        FedoraMessage m = message(FedoraAction.CREATED, URI, "http://www.w3.org/ns/ldp#Container",
+                "http://example.org/pass#Grant");
+
+        metrics.observeMillis(IndexerMetrics.FEDORA_GET, m, 3);
+        metrics.observeMillis(IndexerMetrics.FEDORA_GET, m, 30);
+
+        String result = write(metrics);
+        String labels = "stage=\"fedora_get\",action=\"created\",type=\"Grant\"";
+
+        assertTrue(result.contains("# TYPE pass_indexer_stage_seconds histogram"));
+        assertTrue(result.contains("pass_indexer_stage_seconds_bucket{" + labels + ",le=\"0.001\"} 0\n"));
+        assertTrue(result.contains("pass_indexer_stage_seconds_bucket{" + labels + ",le=\"0.005\"} 1\n"));
+        assertTrue(result.contains("pass_indexer_stage_seconds_bucket{" + labels + ",le=\"0.05\"} 2\n"));
+        assertTrue(result.contains("pass_indexer_stage_seconds_bucket{" + labels + ",le=\"+Inf\"} 2\n"));
+        assertTrue(result.contains("pass_indexer_stage_seconds_sum{" + labels + "} 0.033\n"));
+        assertTrue(result.contains("pass_indexer_stage_seconds_count{" + labels + "} 2\n"));
+    }
+
+    // Failure of a future is counted for the stage.
+    @Test
+    public void testFailure() throws Exception {
+        IndexerMetrics metrics = new IndexerMetrics();
+        metrics.setTypePrefix("http://example.org/pass#");
+
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        metrics.observeCompletion(IndexerMetrics.ES_WRITE, message(FedoraAction.MODIFIED, URI, "http://example.org/other#Cow"),
+                System.nanoTime(), result);
+        result.completeExceptionally(new IOException());
+
+        assertTrue(write(metrics).contains(
+                "pass_indexer_stage_failures_total{stage=\"es_write\",action=\"modified\",type=\"other\"} 1\n"));
+    }
+
+    @Test
+    public void testCounters() throws Exception {
+        IndexerMetrics metrics = new IndexerMetrics();
+
+        metrics.countMessage(IndexerMetrics.RECEIVED);
+        metrics.countMessage(IndexerMetrics.RECEIVED);
+        metrics.countMessage(IndexerMetrics.FILTERED);
+        metrics.countDroppedField("na\"me", IndexerMetrics.UNMAPPED);
+
+        String result = write(metrics);
+
+        assertTrue(result.contains("pass_indexer_messages_total{outcome=\"received\"} 2\n"));
+        assertTrue(result.contains("pass_indexer_messages_total{outcome=\"filtered\"} 1\n"));
+        assertTrue(result.contains("pass_indexer_dropped_fields_total{field=\"na\\\"me\",reason=\"unmapped\"} 1\n"));
+    }
+}
@@ -16,14 +16,25 @@
 
 package org.dataconservancy.pass.indexer;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
+import javax.jms.TextMessage;
 
 import org.apache.activemq.junit.EmbeddedActiveMQBroker;
 import org.junit.Rule;
@@ -60,4 +71,200 @@ public class JmsClientTest {
             }
         }
     }
+
+    // Each consumer must be able to handle a message at the same time.
+    @Test
+    public void concurrentConsumersTest() throws Exception {
+        final String queue = "test.concurrent.queue";
+        final int consumers = 3;
+
+        final CyclicBarrier barrier = new CyclicBarrier(consumers);
+        final CountDownLatch received = new CountDownLatch(consumers);
+
+        try (final JmsClient one = new JmsClient(broker.createConnectionFactory())) {
+            try (final JmsClient two = new JmsClient(broker.createConnectionFactory())) {
+
+                one.listen(queue, consumers, m -> {
+                    try {
+                        barrier.await(10, TimeUnit.SECONDS);
+                        received.countDown();
+                    } catch (final Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+
+                final Session session = two.getSessionSupplier().get();
+
+                try (MessageProducer producer = session.createProducer(null)) {
+                    for (int i = 0; i < consumers; i++) {
+                        producer.send(session.createQueue(queue), session.createTextMessage("hello " + i));
+                    }
+                }
+
+                assertTrue(received.await(10, TimeUnit.SECONDS));
+            }
+        }
+    }
+
+    // Only messages with a resource type header matching the prefix are delivered.
+    // Characters special to LIKE in the prefix must be escaped.
+    @Test
+    public void selectorTest() throws Exception {
+        final String queue = "test.selector.queue";
+        final String selector = FedoraIndexerService.type_prefix_selector("resourceType", "http://example.org/pass_1/");
+
+        final List<String> received = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(1);
+
+        try (final JmsClient one = new JmsClient(broker.createConnectionFactory())) {
+            try (final JmsClient two = new JmsClient(broker.createConnectionFactory())) {
+
+                one.listen(queue, selector, 1, m -> {
+                    try {
+                        received.add(((TextMessage) m).getText());
+                    } catch (final JMSException e) {
+                        throw new RuntimeException(e);
+                    }
+
+                    done.countDown();
+                });
+
+                final Session session = two.getSessionSupplier().get();
+
+                try (MessageProducer producer = session.createProducer(null)) {
+                    String[] types = new String[] {
+                        "http://www.w3.org/ns/ldp#Container,http://example.org/passX1/Grant",
+                        "http://www.w3.org/ns/ldp#Container,http://example.org/pass_1/Grant"
+                    };
+
+                    for (String type : types) {
+                        Message msg = session.createTextMessage(type);
+                        msg.setStringProperty("resourceType", type);
+                        producer.send(session.createQueue(queue), msg);
+                    }
+                }
+
+                assertTrue(done.await(10, TimeUnit.SECONDS));
+                Thread.sleep(500);
+
+                assertEquals(1, received.size());
+                assertTrue(received.get(0).contains("pass_1"));
+            }
+        }
+    }
+
+    // A batch is acknowledged once every message succeeds and delivered again if one fails.
+    @Test
+    public void batchedTest() throws Exception {
+        final String queue = "test.batched.queue";
+
+        final List<String> received = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(6);
+        final AtomicBoolean failed = new AtomicBoolean();
+
+        try (final JmsClient one = new JmsClient(broker.createConnectionFactory())) {
+            try (final JmsClient two = new JmsClient(broker.createConnectionFactory())) {
+                final Session session = two.getSessionSupplier().get();
+
+                try (MessageProducer producer = session.createProducer(null)) {
+                    for (int i = 0; i < 3; i++) {
+                        producer.send(session.createQueue(queue), session.createTextMessage("hello " + i));
+                    }
+                }
+
+                one.listenBatched(queue, null, 1, 3, 5000, m -> {
+                    CompletableFuture<Void> result = new CompletableFuture<>();
+
+                    try {
+                        String text = ((TextMessage) m).getText();
+                        received.add(text);
+
+                        // Fail the first delivery of one message
+                        if (text.equals("hello 1") && !failed.getAndSet(true)) {
+                            result.completeExceptionally(new IOException("fail"));
+                        } else {
+                            result.complete(null);
+                        }
+                    } catch (final JMSException e) {
+                        result.completeExceptionally(e);
+                    }
+
+                    done.countDown();
+                    return result;
+                });
+
+                assertTrue(done.await(30, TimeUnit.SECONDS));
+
+                for (int i = 0; i < 50 && broker.getMessageCount(queue) > 0; i++) {
+                    Thread.sleep(100);
+                }
+            }
+        }
+
+        assertEquals(6, received.size());
+        assertEquals(0, broker.getMessageCount(queue));
+    }
+
+    // Fedora header cannot be used in a selector
+    @Test(expected = IllegalArgumentException.class)
+    public void selectorHeaderTest() {
+        FedoraIndexerService.type_prefix_selector(FedoraIndexerService.FEDORA_RESOURCE_TYPE_HEADER, "http://example.org/");
+    }
+
+    // Messages are moved in order with the result of the transform and dropped if it returns null.
+    @Test
+    public void forwardTest() throws Exception {
+        final String source = "test.forward.source";
+        final String target = "test.forward.target";
+
+        final List<String> received = Collections.synchronizedList(new ArrayList<>());
+        final List<String> groups = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(2);
+
+        try (final JmsClient one = new JmsClient(broker.createConnectionFactory())) {
+            try (final JmsClient two = new JmsClient(broker.createConnectionFactory())) {
+
+                one.forward(source, null, target, (s, m) -> {
+                    String text = ((TextMessage) m).getText();
+
+                    if (text.equals("drop")) {
+                        return null;
+                    }
+
+                    Message result = s.createTextMessage(text);
+                    result.setStringProperty("JMSXGroupID", "group-" + text);
+                    return result;
+                });
+
+                two.listen(target, m -> {
+                    try {
+                        received.add(((TextMessage) m).getText());
+                        groups.add(m.getStringProperty("JMSXGroupID"));
+                    } catch (final JMSException e) {
+                        throw new RuntimeException(e);
+                    }
+
+                    done.countDown();
+                });
+
+                final Session session = two.getSessionSupplier().get();
+
+                try (MessageProducer producer = session.createProducer(null)) {
+                    for (String text : new String[] { "a", "drop", "b" }) {
+                        producer.send(session.createQueue(source), session.createTextMessage(text));
+                    }
+                }
+
+                assertTrue(done.await(10, TimeUnit.SECONDS));
+
+                for (int i = 0; i < 50 && broker.getMessageCount(source) > 0; i++) {
+                    Thread.sleep(100);
+                }
+
+                assertEquals(Arrays.asList("a", "b"), received);
+                assertEquals(Arrays.asList("group-a", "group-b"), groups);
+                assertEquals(0, broker.getMessageCount(source));
+            }
+        }
+    }
 }
@@ -0,0 +1,15 @@
+package org.dataconservancy.pass.indexer;
+
+// Fedora messages shared by the tests
+final class TestMessages {
+    private TestMessages() {
+    }
+
+    static FedoraMessage message(FedoraAction action, String uri, String... types) {
+        FedoraMessage m = new FedoraMessage();
+        m.setAction(action);
+        m.setResourceURI(uri);
+        m.setResourceTypes(types);
+        return m;
+    }
+}